@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Keys for benchmarking, with a controllable hash code distribution.
+// Keys are compared by identifier and hash by a precomputed hash code,
+// so equals and hashCode costs are the same for all distributions.
+// Keys are Comparable, ordered by identifier.
+public final class Keys {
+
+    public enum Distribution {
+        // Hash codes are well spread, a murmur3 mix of the identifier
+        SPREAD {
+            int hash(int id) {
+                return mix(id);
+            }
+        },
+        // Groups of 8 consecutive identifiers share the same hash code,
+        // producing collision nodes at the leaves of the trie
+        COLLIDING {
+            int hash(int id) {
+                return mix(id >>> 3);
+            }
+        },
+        // Groups of 256 consecutive identifiers share the same hash code,
+        // producing large collision nodes, as for keys with a poor hash
+        // code
+        DEGENERATE {
+            int hash(int id) {
+                return mix(id >>> 8);
+            }
+        };
+
+        abstract int hash(int id);
+    }
+
+    static Key[] keys(Distribution d, int from, int to) {
+        Key[] keys = new Key[to - from];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Key(from + i, d.hash(from + i));
+        }
+        return keys;
+    }
+
+    static Key[] shuffle(Key[] keys, long seed) {
+        Key[] s = Arrays.copyOf(keys, keys.length);
+        Random r = new Random(seed);
+        for (int i = s.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            Key t = s[i];
+            s[i] = s[j];
+            s[j] = t;
+        }
+        return s;
+    }
+
+    // murmur3 32 bit finalizer
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static final class Key implements Comparable<Key> {
+        final int id;
+        final int h;
+
+        Key(int id, int h) {
+            this.id = id;
+            this.h = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return id == key.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return h;
+        }
+
+        @Override
+        public int compareTo(Key k) {
+            return Integer.compare(id, k.id);
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(id);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Single operations on a PMap of a given size, compared against
+// HashMap and Map.copyOf.  Each invocation operates on the next key of a
+// shuffled sequence of keys so that successive operations follow
+// different paths through the trie.
+// Run with -prof gc (the default of per.Benchmarks) to report the
+// allocation rate per operation, which for put and remove is the cost
+// of path copying.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+@State(Scope.Thread)
+public class PMapBenchmark {
+    static final int MISSING_KEYS = 1 << 16;
+
+    static final int BATCH_SIZE = 1000;
+
+    @Param({"10", "1000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"SPREAD", "COLLIDING", "DEGENERATE"})
+    Keys.Distribution distribution;
+
+    // Cache the hash of each key in the trie
+    @Param({"false", "true"})
+    boolean cacheHashes;
+
+    Keys.Key[] keys;
+    Keys.Key[] missingKeys;
+    int index;
+    int missingIndex;
+
+    PMap<Keys.Key, Object> pmap;
+    // A map of BATCH_SIZE keys, half present in pmap
+    PMap<Keys.Key, Object> batch;
+    // Every tenth key of pmap
+    Set<Keys.Key> evicted;
+    Map<Keys.Key, Object> hashMap;
+    Map<Keys.Key, Object> copyOfMap;
+
+    @Setup
+    public void setup() {
+        Keys.Key[] present = Keys.keys(distribution, 0, size);
+        keys = Keys.shuffle(present, 42);
+        missingKeys = Keys.shuffle(Keys.keys(distribution, size, size + MISSING_KEYS), 43);
+
+        PMap<Keys.Key, Object> m = cacheHashes ? PMap.emptyCachingHashes() : PMap.empty();
+        hashMap = new HashMap<>();
+        for (Keys.Key k : present) {
+            m = m.put(k, k);
+            hashMap.put(k, k);
+        }
+        pmap = m;
+        // Compute and cache the hash codes of all nodes
+        pmap.hashCode();
+        copyOfMap = Map.copyOf(hashMap);
+
+        PMap<Keys.Key, Object> b = cacheHashes ? PMap.emptyCachingHashes() : PMap.empty();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Keys.Key k = (i & 1) == 0 ? keys[i % keys.length] : missingKeys[i];
+            b = b.put(k, Boolean.TRUE);
+        }
+        batch = b;
+
+        evicted = new HashSet<>();
+        for (int i = 0; i < size; i += 10) {
+            evicted.add(present[i]);
+        }
+    }
+
+    Keys.Key nextKey() {
+        int i = index;
+        index = i + 1 == keys.length ? 0 : i + 1;
+        return keys[i];
+    }
+
+    Keys.Key nextMissingKey() {
+        int i = missingIndex;
+        missingIndex = (i + 1) & (MISSING_KEYS - 1);
+        return missingKeys[i];
+    }
+
+    // get
+
+    @Benchmark
+    public Optional<Object> get() {
+        return pmap.get(nextKey());
+    }
+
+    @Benchmark
+    public Optional<Object> getMissing() {
+        return pmap.get(nextMissingKey());
+    }
+
+    // Allocation free lookups, gc.alloc.rate.norm should be 0 B/op
+
+    @Benchmark
+    public Object getOrNull() {
+        return pmap.getOrNull(nextKey());
+    }
+
+    @Benchmark
+    public Object getOrDefaultMissing() {
+        return pmap.getOrDefault(nextMissingKey(), Boolean.FALSE);
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        return pmap.containsKey(nextKey());
+    }
+
+    @Benchmark
+    public Object hashMapGet() {
+        return hashMap.get(nextKey());
+    }
+
+    @Benchmark
+    public Object copyOfGet() {
+        return copyOfMap.get(nextKey());
+    }
+
+    // put
+
+    @Benchmark
+    public PMap<Keys.Key, Object> putReplace() {
+        return pmap.put(nextKey(), Boolean.TRUE);
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> putNew() {
+        return pmap.put(nextMissingKey(), Boolean.TRUE);
+    }
+
+    @Benchmark
+    public Object hashMapPutReplace() {
+        Keys.Key k = nextKey();
+        return hashMap.put(k, k);
+    }
+
+    // A batch of puts replacing existing values, successively with put,
+    // copying each path for each put, and with withMutations, copying
+    // each node at most once
+
+    @Benchmark
+    public PMap<Keys.Key, Object> batchPut() {
+        PMap<Keys.Key, Object> m = pmap;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            m = m.put(nextKey(), Boolean.TRUE);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> batchWithMutations() {
+        return pmap.withMutations(b -> {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                b.put(nextKey(), Boolean.TRUE);
+            }
+        });
+    }
+
+    // A batch of mappings merged, with putAll traversing both tries
+    // together, and with a put for each mapping
+
+    @Benchmark
+    public PMap<Keys.Key, Object> putAll() {
+        return pmap.putAll(batch);
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> putAllWithPut() {
+        @SuppressWarnings("unchecked")
+        PMap<Keys.Key, Object>[] m = new PMap[]{pmap};
+        batch.forEach((k, v) -> m[0] = m[0].put(k, v));
+        return m[0];
+    }
+
+    // The differences to a version with one changed mapping, traversing
+    // only the nodes on the path to the change
+
+    @Benchmark
+    public void diff(Blackhole bh) {
+        pmap.diff(pmap.put(nextKey(), Boolean.TRUE), new PMap.DiffListener<>() {
+            @Override
+            public void added(Keys.Key k, Object v) {
+                bh.consume(v);
+            }
+
+            @Override
+            public void removed(Keys.Key k, Object v) {
+                bh.consume(v);
+            }
+
+            @Override
+            public void changed(Keys.Key k, Object v, Object thatV) {
+                bh.consume(thatV);
+            }
+        });
+    }
+
+    // Equality with, and the hash code of, a version with one changed
+    // mapping, traversing only the nodes on the path to the change
+
+    @Benchmark
+    public boolean equalsChanged() {
+        return pmap.equals(pmap.put(nextKey(), Boolean.TRUE));
+    }
+
+    @Benchmark
+    public int hashCodeChanged() {
+        return pmap.put(nextKey(), Boolean.TRUE).hashCode();
+    }
+
+    // remove
+
+    @Benchmark
+    public PMap<Keys.Key, Object> remove() {
+        return pmap.remove(nextKey());
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> removeMissing() {
+        return pmap.remove(nextMissingKey());
+    }
+
+    // Updating a value from the current value, traversing once with
+    // compute and twice with a get followed by a put
+
+    @Benchmark
+    public PMap<Keys.Key, Object> compute() {
+        return pmap.compute(nextKey(), (k, v) -> v == Boolean.TRUE ? k : Boolean.TRUE);
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> getPut() {
+        Keys.Key k = nextKey();
+        Object v = pmap.getOrNull(k);
+        return pmap.put(k, v == Boolean.TRUE ? k : Boolean.TRUE);
+    }
+
+    // Unchanged value, returning the same map without copying
+
+    @Benchmark
+    public PMap<Keys.Key, Object> computeIfAbsentPresent() {
+        return pmap.computeIfAbsent(nextKey(), k -> k);
+    }
+
+    // forEach
+
+    @Benchmark
+    public void forEach(Blackhole bh) {
+        pmap.forEach((k, v) -> bh.consume(v));
+    }
+
+    // Iterative traversal, allocating only the iterator
+    @Benchmark
+    public void valueIterator(Blackhole bh) {
+        for (Iterator<Object> i = pmap.valueIterator(); i.hasNext(); ) {
+            bh.consume(i.next());
+        }
+    }
+
+    // Eviction of a tenth of the mappings, filtering in one pass, and
+    // with a remove for each mapping
+
+    @Benchmark
+    public PMap<Keys.Key, Object> filter() {
+        return pmap.filter((k, v) -> k.id % 10 != 0);
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> filterWithRemove() {
+        PMap<Keys.Key, Object> m = pmap;
+        for (Keys.Key k : evicted) {
+            m = m.remove(k);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public void hashMapForEach(Blackhole bh) {
+        hashMap.forEach((k, v) -> bh.consume(v));
+    }
+
+    @Benchmark
+    public void copyOfForEach(Blackhole bh) {
+        copyOfMap.forEach((k, v) -> bh.consume(v));
+    }
+}
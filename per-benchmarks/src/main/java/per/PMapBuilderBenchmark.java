@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Bulk construction of a PMap of a given size, with PMap.of and a
+// PMapBuilder, and in parallel with PMap.ofParallel, compared against successive PMap.put, populating a HashMap
+// and Map.copyOf of a populated HashMap.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+@State(Scope.Benchmark)
+public class PMapBuilderBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"SPREAD", "COLLIDING"})
+    Keys.Distribution distribution;
+
+    Keys.Key[] keys;
+    Map<Keys.Key, Object> hashMap;
+    List<Map.Entry<Keys.Key, Object>> entries;
+
+    @Setup
+    public void setup() {
+        keys = Keys.keys(distribution, 0, size);
+        hashMap = new HashMap<>();
+        entries = new ArrayList<>();
+        for (Keys.Key k : keys) {
+            hashMap.put(k, k);
+            entries.add(Map.entry(k, k));
+        }
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> of() {
+        Keys.Key[] ks = keys;
+        return PMap.of(b -> {
+            for (Keys.Key k : ks) {
+                b.put(k, k);
+            }
+        });
+    }
+
+    // Scales with the parallelism of the common fork/join pool, vary with
+    // -jvmArgsAppend -Djava.util.concurrent.ForkJoinPool.common.parallelism=N
+    @Benchmark
+    public PMap<Keys.Key, Object> ofParallel() {
+        return PMap.ofParallel(entries);
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Object> put() {
+        PMap<Keys.Key, Object> m = PMap.empty();
+        for (Keys.Key k : keys) {
+            m = m.put(k, k);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public Map<Keys.Key, Object> hashMap() {
+        Map<Keys.Key, Object> m = new HashMap<>();
+        for (Keys.Key k : keys) {
+            m.put(k, k);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public Map<Keys.Key, Object> copyOf() {
+        return Map.copyOf(hashMap);
+    }
+
+    // The cost of freezing the mutable nodes of a builder into a PMap.
+    // Freezing invalidates the mutable nodes so a fresh builder is
+    // populated, outside of the measurement, before each invocation.
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 10, batchSize = 1)
+    @Measurement(iterations = 20, batchSize = 1)
+    @State(Scope.Thread)
+    public static class Freeze {
+        @Param({"10", "1000", "100000", "1000000", "10000000"})
+        int size;
+
+        @Param({"SPREAD", "COLLIDING"})
+        Keys.Distribution distribution;
+
+        Keys.Key[] keys;
+        PMapBuilder.MutableHAMT<Keys.Key, Object> m;
+
+        @Setup
+        public void setup() {
+            keys = Keys.keys(distribution, 0, size);
+        }
+
+        @Setup(Level.Invocation)
+        public void populate() {
+            PMapBuilder<Keys.Key, Object> b = new PMapBuilder<>();
+            for (Keys.Key k : keys) {
+                b.put(k, k);
+            }
+            m = b.m;
+            b.clear();
+        }
+
+        @Benchmark
+        public PMap<Keys.Key, Object> toPMap() {
+            return PMapBuilder.toPMap(m);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Contended updates of a shared PMap of a given size, with a PMapRef
+// compared against a compare-and-set retry loop on an AtomicReference.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class PMapRefBenchmark {
+
+    @Param({"1000", "100000"})
+    int size;
+
+    Keys.Key[] keys;
+    AtomicReference<PMap<Keys.Key, Integer>> atomic;
+    PMapRef<Keys.Key, Integer> ref;
+
+    @Setup
+    public void setup() {
+        keys = Keys.keys(Keys.Distribution.SPREAD, 0, size);
+        PMap<Keys.Key, Integer> m = PMap.empty();
+        for (Keys.Key k : keys) {
+            m = m.put(k, 0);
+        }
+        atomic = new AtomicReference<>(m);
+        ref = new PMapRef<>(m);
+    }
+
+    @Benchmark
+    public PMap<Keys.Key, Integer> atomicReference() {
+        Keys.Key k = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return atomic.updateAndGet(m -> m.put(k, m.getOrDefault(k, 0) + 1));
+    }
+
+    @Benchmark
+    public Integer pMapRef() {
+        Keys.Key k = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return ref.update(k, v -> v + 1);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.security.SecureRandom;
+
+// A strategy for hashing the keys of a PMap, replacing the hash code of
+// a key spread by exclusive-or of its upper bits.
+// A map with a strategy caches the hash of each key, so keys are hashed
+// by the strategy only when first put, or when looked up, and a map
+// created from such a map, by modification, union, or a builder, has
+// the same strategy.
+// A strategy should distribute hashes uniformly over all 32 bits, since
+// each layer of the trie consumes 5 bits of the hash.  When the bits of
+// the hash are consumed the layers beyond consume the hashes of the key
+// at subsequent levels, and keys whose hashes are equal at all levels
+// are held, and scanned linearly, in collision nodes.
+// The tries of maps with equal strategies, as compared by equals, share
+// nodes when compared, combined, or diffed, otherwise mappings are looked
+// up one by one, so equal strategies should hash keys equally.
+@FunctionalInterface
+public interface HashStrategy {
+    // The number of levels of hashes of a key, including the first
+    int LEVELS = 4;
+
+    int hash(Object k);
+
+    // Returns the hash of a key at a level, less than LEVELS, where the
+    // hash at level 0 is the hash of the key.  The hashes at the other
+    // levels should be independent of the hash, since they distinguish
+    // keys whose hashes are equal.  By default the hashes at the other
+    // levels are 0, and keys whose hashes are equal collide
+    default int hash(Object k, int level) {
+        return level == 0 ? hash(k) : 0;
+    }
+
+    // Returns a strategy that mixes the hash code of a key with a seed.
+    // Keys of a CharSequence, such as String, are hashed from their
+    // characters, independently of their hash code, so strings with equal
+    // hash codes, such as "Aa" and "BB", do not collide, and collisions
+    // of strings cannot be constructed without the seed.  Their hashes
+    // at the other levels are hashed likewise with the seed remixed by
+    // level, so strings collide only if equal in hash at all levels.
+    // Other keys are hashed from their hash code, by a mix that is a
+    // bijection, so keys with equal hash codes collide whatever the seed,
+    // and are held in collision nodes.
+    // Strategies of equal seeds are equal, and maps with equal strategies
+    // have tries of the same shape
+    static HashStrategy seeded(int seed) {
+        return new SeededHashStrategy(seed);
+    }
+
+    // Returns a strategy that mixes with a random seed
+    static HashStrategy seeded() {
+        return seeded(new SecureRandom().nextInt());
+    }
+}
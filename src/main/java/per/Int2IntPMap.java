@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+// A persistent map of int keys to int values.
+// The trie is that of PMap, but specialized for int keys and values,
+// which are held unboxed in an int array, in the same order as the
+// mapping nodes.  Sub-layer nodes are held in a separate array.
+// The hash of a key is a bijection of the key, so keys never collide.
+public final class Int2IntPMap {
+    static final int[] EMPTY_DATA = new int[0];
+
+    static final Int2IntPMap[] EMPTY_SUB_LAYERS = new Int2IntPMap[0];
+
+    static final Int2IntPMap EMPTY = new Int2IntPMap(0, 0, 0, EMPTY_DATA, EMPTY_SUB_LAYERS);
+
+    // @Stable
+    final int size;
+    // bit map of symbols of mapping nodes
+    // @Stable
+    final int dataMap;
+    // bit map of symbols of sub-layer nodes
+    // @Stable
+    final int nodeMap;
+    // [k, v, ..., k, v]
+    // @Stable
+    final int[] data;
+    // [n, ..., n]
+    // sub-layer nodes, in symbol order
+    // invariant: a sub-layer will not consist of a single mapping node
+    // @Stable
+    final Int2IntPMap[] subLayers;
+
+    Int2IntPMap(int size, int dataMap, int nodeMap, int[] data, Int2IntPMap[] subLayers) {
+        this.size = size;
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
+        this.data = data;
+        this.subLayers = subLayers;
+    }
+
+    public static Int2IntPMap empty() {
+        return EMPTY;
+    }
+
+    public static Int2IntPMap of(int k, int v) {
+        return new Int2IntPMap(1, 1 << PMap.symbolAtDepth(IntPMap.hash(k), 0), 0,
+                               new int[]{k, v}, EMPTY_SUB_LAYERS);
+    }
+
+    public interface EntryConsumer {
+        void accept(int k, int v);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < data.length; i += 2) {
+            // Mapping node
+            action.accept(data[i], data[i + 1]);
+        }
+        for (Int2IntPMap s : subLayers) {
+            // Sub-layer node
+            s.forEach(action);
+        }
+    }
+
+    public int getOrDefault(int k, int defaultValue) {
+        int h = IntPMap.hash(k);
+        Int2IntPMap m = this;
+        for (int dShift = 0; ; dShift += PMap.PREFIX_BIT_SIZE) {
+            int symbol = PMap.symbolAtDepth(h, dShift);
+            if (PMap.bitmapGet(m.dataMap, symbol) != 0) {
+                // Mapping node
+
+                int i = PMap.dataIndex(m.dataMap, symbol);
+                return m.data[i] == k ? m.data[i + 1] : defaultValue;
+            }
+            else if (PMap.bitmapGet(m.nodeMap, symbol) != 0) {
+                // Sub-layer node
+
+                m = m.subLayers[PMap.bitmapCountFrom(m.nodeMap, symbol)];
+            }
+            else {
+                // Mapping does not exist
+                return defaultValue;
+            }
+        }
+    }
+
+    public boolean containsKey(int k) {
+        int h = IntPMap.hash(k);
+        Int2IntPMap m = this;
+        for (int dShift = 0; ; dShift += PMap.PREFIX_BIT_SIZE) {
+            int symbol = PMap.symbolAtDepth(h, dShift);
+            if (PMap.bitmapGet(m.dataMap, symbol) != 0) {
+                // Mapping node
+
+                return m.data[PMap.dataIndex(m.dataMap, symbol)] == k;
+            }
+            else if (PMap.bitmapGet(m.nodeMap, symbol) != 0) {
+                // Sub-layer node
+
+                m = m.subLayers[PMap.bitmapCountFrom(m.nodeMap, symbol)];
+            }
+            else {
+                // Mapping does not exist
+                return false;
+            }
+        }
+    }
+
+    public Int2IntPMap put(int k, int v) {
+        return put(k, v, IntPMap.hash(k), 0);
+    }
+
+    private Int2IntPMap put(int k, int v, int h, int dShift) {
+        int symbol = PMap.symbolAtDepth(h, dShift);
+
+        if (PMap.bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing mapping node
+
+            int i = PMap.dataIndex(dataMap, symbol);
+            int _k = data[i];
+            if (_k == k) {
+                // Replace value
+
+                if (data[i + 1] == v) {
+                    return this;
+                }
+                int[] n_data = data.clone();
+                n_data[i + 1] = v;
+                return new Int2IntPMap(size, dataMap, nodeMap, n_data, subLayers);
+            }
+
+            // Replace mapping node with a sub-layer node
+            Int2IntPMap n = mergeTwo(_k, data[i + 1], IntPMap.hash(_k), k, v, h, dShift + PMap.PREFIX_BIT_SIZE);
+
+            return new Int2IntPMap(size + 1,
+                                   PMap.bitmapClear(dataMap, symbol),
+                                   PMap.bitmapSet(nodeMap, symbol),
+                                   removeData(data, i),
+                                   insertSubLayer(subLayers, PMap.bitmapCountFrom(nodeMap, symbol), n));
+        }
+        else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+            // Sub-layer node
+
+            int ni = PMap.bitmapCountFrom(nodeMap, symbol);
+            Int2IntPMap s = subLayers[ni];
+            Int2IntPMap r = s.put(k, v, h, dShift + PMap.PREFIX_BIT_SIZE);
+            if (r == s) {
+                return this;
+            }
+
+            Int2IntPMap[] n_subLayers = subLayers.clone();
+            n_subLayers[ni] = r;
+            return new Int2IntPMap(size + r.size - s.size, dataMap, nodeMap, data, n_subLayers);
+        }
+        else {
+            // Mapping node is free
+
+            return new Int2IntPMap(size + 1,
+                                   PMap.bitmapSet(dataMap, symbol),
+                                   nodeMap,
+                                   insertData(data, PMap.dataIndex(dataMap, symbol), k, v),
+                                   subLayers);
+        }
+    }
+
+    // Create a sub-layer node, at a depth, from two mappings with different
+    // keys
+    static Int2IntPMap mergeTwo(int k0, int v0, int h0,
+                                int k1, int v1, int h1,
+                                int dShift) {
+        int s0 = PMap.symbolAtDepth(h0, dShift);
+        int s1 = PMap.symbolAtDepth(h1, dShift);
+        if (s0 != s1) {
+            int[] data = s0 < s1
+                         ? new int[]{k0, v0, k1, v1}
+                         : new int[]{k1, v1, k0, v0};
+            return new Int2IntPMap(2, (1 << s0) | (1 << s1), 0, data, EMPTY_SUB_LAYERS);
+        }
+        else {
+            // Prefix conflict at this depth
+            Int2IntPMap s = mergeTwo(k0, v0, h0, k1, v1, h1, dShift + PMap.PREFIX_BIT_SIZE);
+            return new Int2IntPMap(2, 0, 1 << s0, EMPTY_DATA, new Int2IntPMap[]{s});
+        }
+    }
+
+    public Int2IntPMap remove(int k) {
+        return remove(k, IntPMap.hash(k), 0);
+    }
+
+    private Int2IntPMap remove(int k, int h, int dShift) {
+        int symbol = PMap.symbolAtDepth(h, dShift);
+
+        if (PMap.bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing mapping node
+
+            int i = PMap.dataIndex(dataMap, symbol);
+            if (data[i] != k) {
+                // Mapping does not exist
+
+                return this;
+            }
+
+            // Remove mapping
+
+            if (size == 1) {
+                // Empty layer
+
+                return empty();
+            }
+
+            return new Int2IntPMap(size - 1, PMap.bitmapClear(dataMap, symbol), nodeMap,
+                                   removeData(data, i), subLayers);
+        }
+        else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+            // Sub-layer node
+
+            int ni = PMap.bitmapCountFrom(nodeMap, symbol);
+            Int2IntPMap s = subLayers[ni];
+            Int2IntPMap r = s.remove(k, h, dShift + PMap.PREFIX_BIT_SIZE);
+
+            if (r == s) {
+                // No mapping exists
+
+                return this;
+            }
+
+            if (r.size == 1) {
+                // One mapping node remaining in child, fold into parent
+                // to retain mapping node count invariant
+
+                return new Int2IntPMap(size - 1,
+                                       PMap.bitmapSet(dataMap, symbol),
+                                       PMap.bitmapClear(nodeMap, symbol),
+                                       insertData(data, PMap.dataIndex(dataMap, symbol), r.data[0], r.data[1]),
+                                       removeSubLayer(subLayers, ni));
+            }
+
+            Int2IntPMap[] n_subLayers = subLayers.clone();
+            n_subLayers[ni] = r;
+            return new Int2IntPMap(size - 1, dataMap, nodeMap, data, n_subLayers);
+        }
+        else {
+            // Mapping does not exist
+
+            return this;
+        }
+    }
+
+    static int[] insertData(int[] data, int i, int k, int v) {
+        int[] n_data = new int[data.length + 2];
+        System.arraycopy(data, 0,
+                         n_data, 0, i);
+        n_data[i] = k;
+        n_data[i + 1] = v;
+        System.arraycopy(data, i,
+                         n_data, i + 2, data.length - i);
+        return n_data;
+    }
+
+    static int[] removeData(int[] data, int i) {
+        if (data.length == 2)
+            return EMPTY_DATA;
+
+        int[] n_data = new int[data.length - 2];
+        System.arraycopy(data, 0,
+                         n_data, 0, i);
+        System.arraycopy(data, i + 2,
+                         n_data, i, data.length - i - 2);
+        return n_data;
+    }
+
+    static Int2IntPMap[] insertSubLayer(Int2IntPMap[] subLayers, int i, Int2IntPMap s) {
+        Int2IntPMap[] n_subLayers = new Int2IntPMap[subLayers.length + 1];
+        System.arraycopy(subLayers, 0,
+                         n_subLayers, 0, i);
+        n_subLayers[i] = s;
+        System.arraycopy(subLayers, i,
+                         n_subLayers, i + 1, subLayers.length - i);
+        return n_subLayers;
+    }
+
+    static Int2IntPMap[] removeSubLayer(Int2IntPMap[] subLayers, int i) {
+        if (subLayers.length == 1)
+            return EMPTY_SUB_LAYERS;
+
+        Int2IntPMap[] n_subLayers = new Int2IntPMap[subLayers.length - 1];
+        System.arraycopy(subLayers, 0,
+                         n_subLayers, 0, i);
+        System.arraycopy(subLayers, i + 1,
+                         n_subLayers, i, subLayers.length - i - 1);
+        return n_subLayers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[ ");
+        int l = sb.length();
+        forEach((k, v) -> {
+            if (sb.length() > l) sb.append(", ");
+            sb.append(k).append(" -> ").append(v);
+        });
+        return sb.append(" ]").toString();
+    }
+}
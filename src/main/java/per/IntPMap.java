@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+// A persistent map of int keys to values.
+// The trie is that of PMap, but specialized for int keys, which are held
+// unboxed in an int array, in the same order as the mapping nodes.
+// The hash of a key is a bijection of the key, so keys never collide,
+// and keys are compared with ==.
+public final class IntPMap<V> {
+    static final int[] EMPTY_KEYS = new int[0];
+
+    static final IntPMap<?> EMPTY = new IntPMap<>(0, 0, 0, EMPTY_KEYS, PMap.EMPTY_NODES);
+
+    // @Stable
+    final int size;
+    // bit map of symbols of mapping nodes
+    // @Stable
+    final int dataMap;
+    // bit map of symbols of sub-layer nodes
+    // @Stable
+    final int nodeMap;
+    // [k, ..., k]
+    // keys of the mapping nodes
+    // @Stable
+    final int[] keys;
+    // [v, ..., v, n, ..., n]
+    // Values of the mapping nodes, in the same order as the keys,
+    // followed by sub-layer nodes, IntPMap, in reverse symbol order
+    // invariant: a sub-layer will not consist of a single mapping node
+    // @Stable
+    final Object[] nodes;
+
+    IntPMap(int size, int dataMap, int nodeMap, int[] keys, Object[] nodes) {
+        this.size = size;
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
+        this.keys = keys;
+        this.nodes = nodes;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> IntPMap<V> empty() {
+        return (IntPMap<V>) EMPTY;
+    }
+
+    public static <V> IntPMap<V> of(int k, V v) {
+        return new IntPMap<>(1, 1 << PMap.symbolAtDepth(hash(k), 0), 0,
+                            new int[]{k}, new Object[]{v});
+    }
+
+    static int hash(int k) {
+        return k ^ (k >>> 16);
+    }
+
+    public interface EntryConsumer<V> {
+        void accept(int k, V v);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer<? super V> action) {
+        int dataCount = keys.length;
+        for (int i = 0; i < dataCount; i++) {
+            // Mapping node
+
+            @SuppressWarnings("unchecked")
+            V v = (V) nodes[i];
+            action.accept(keys[i], v);
+        }
+        for (int i = nodes.length - 1; i >= dataCount; i--) {
+            // Sub-layer node
+
+            @SuppressWarnings("unchecked")
+            IntPMap<V> s = (IntPMap<V>) nodes[i];
+            s.forEach(action);
+        }
+    }
+
+    // Returns the value of the mapping, or null if no mapping exists.
+    // A null value of a mapping cannot be distinguished from no mapping
+    public V get(int k) {
+        return getOrDefault(k, null);
+    }
+
+    public V getOrDefault(int k, V defaultValue) {
+        Object v = find(k);
+        if (v == PMap.NOT_FOUND) {
+            return defaultValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        V _v = (V) v;
+        return _v;
+    }
+
+    public boolean containsKey(int k) {
+        return find(k) != PMap.NOT_FOUND;
+    }
+
+    // Returns the value of the mapping, otherwise PMap.NOT_FOUND
+    private Object find(int k) {
+        int h = hash(k);
+        IntPMap<?> m = this;
+        for (int dShift = 0; ; dShift += PMap.PREFIX_BIT_SIZE) {
+            int symbol = PMap.symbolAtDepth(h, dShift);
+            if (PMap.bitmapGet(m.dataMap, symbol) != 0) {
+                // Mapping node
+
+                int i = PMap.bitmapCountFrom(m.dataMap, symbol);
+                return m.keys[i] == k ? m.nodes[i] : PMap.NOT_FOUND;
+            }
+            else if (PMap.bitmapGet(m.nodeMap, symbol) != 0) {
+                // Sub-layer node
+
+                m = (IntPMap<?>) m.nodes[PMap.nodeIndex(m.nodes, m.nodeMap, symbol)];
+            }
+            else {
+                // Mapping does not exist
+                return PMap.NOT_FOUND;
+            }
+        }
+    }
+
+    public IntPMap<V> put(int k, V v) {
+        return put(k, v, hash(k), 0);
+    }
+
+    private IntPMap<V> put(int k, V v, int h, int dShift) {
+        int symbol = PMap.symbolAtDepth(h, dShift);
+
+        if (PMap.bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing mapping node
+
+            int i = PMap.bitmapCountFrom(dataMap, symbol);
+            int _k = keys[i];
+            if (_k == k) {
+                // Replace value
+
+                if (nodes[i] == v) {
+                    return this;
+                }
+                return new IntPMap<>(size, dataMap, nodeMap, keys, PMap.set(nodes, i, v));
+            }
+
+            // Replace mapping node with a sub-layer node
+            IntPMap<V> n = mergeTwo(_k, nodes[i], hash(_k), k, v, h, dShift + PMap.PREFIX_BIT_SIZE);
+
+            int ni = nodes.length - 1 - PMap.bitmapCountFrom(nodeMap, symbol);
+            return new IntPMap<>(size + 1,
+                                PMap.bitmapClear(dataMap, symbol),
+                                PMap.bitmapSet(nodeMap, symbol),
+                                removeKey(keys, i),
+                                migrateValueToNode(nodes, i, ni, n));
+        }
+        else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+            // Sub-layer node
+
+            int ni = PMap.nodeIndex(nodes, nodeMap, symbol);
+            @SuppressWarnings("unchecked")
+            IntPMap<V> s = (IntPMap<V>) nodes[ni];
+            IntPMap<V> r = s.put(k, v, h, dShift + PMap.PREFIX_BIT_SIZE);
+            if (r == s) {
+                return this;
+            }
+
+            return new IntPMap<>(size + r.size - s.size, dataMap, nodeMap, keys, PMap.set(nodes, ni, r));
+        }
+        else {
+            // Mapping node is free
+
+            int i = PMap.bitmapCountFrom(dataMap, symbol);
+            return new IntPMap<>(size + 1,
+                                PMap.bitmapSet(dataMap, symbol),
+                                nodeMap,
+                                insertKey(keys, i, k),
+                                insertValue(nodes, i, v));
+        }
+    }
+
+    // Create a sub-layer node, at a depth, from two mappings with different
+    // keys
+    static <V> IntPMap<V> mergeTwo(int k0, Object v0, int h0,
+                                  int k1, Object v1, int h1,
+                                  int dShift) {
+        int s0 = PMap.symbolAtDepth(h0, dShift);
+        int s1 = PMap.symbolAtDepth(h1, dShift);
+        if (s0 != s1) {
+            if (s0 < s1) {
+                return new IntPMap<>(2, (1 << s0) | (1 << s1), 0,
+                                    new int[]{k0, k1}, new Object[]{v0, v1});
+            }
+            else {
+                return new IntPMap<>(2, (1 << s0) | (1 << s1), 0,
+                                    new int[]{k1, k0}, new Object[]{v1, v0});
+            }
+        }
+        else {
+            // Prefix conflict at this depth
+            IntPMap<V> s = mergeTwo(k0, v0, h0, k1, v1, h1, dShift + PMap.PREFIX_BIT_SIZE);
+            return new IntPMap<>(2, 0, 1 << s0, EMPTY_KEYS, new Object[]{s});
+        }
+    }
+
+    public IntPMap<V> remove(int k) {
+        return remove(k, hash(k), 0);
+    }
+
+    private IntPMap<V> remove(int k, int h, int dShift) {
+        int symbol = PMap.symbolAtDepth(h, dShift);
+
+        if (PMap.bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing mapping node
+
+            int i = PMap.bitmapCountFrom(dataMap, symbol);
+            if (keys[i] != k) {
+                // Mapping does not exist
+
+                return this;
+            }
+
+            // Remove mapping
+
+            if (size == 1) {
+                // Empty layer
+
+                return empty();
+            }
+
+            return new IntPMap<>(size - 1, PMap.bitmapClear(dataMap, symbol), nodeMap,
+                                removeKey(keys, i), removeValue(nodes, i));
+        }
+        else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+            // Sub-layer node
+
+            int ni = PMap.nodeIndex(nodes, nodeMap, symbol);
+            @SuppressWarnings("unchecked")
+            IntPMap<V> s = (IntPMap<V>) nodes[ni];
+            IntPMap<V> r = s.remove(k, h, dShift + PMap.PREFIX_BIT_SIZE);
+
+            if (r == s) {
+                // No mapping exists
+
+                return this;
+            }
+
+            if (r.size == 1) {
+                // One mapping node remaining in child, fold into parent
+                // to retain mapping node count invariant
+
+                int i = PMap.bitmapCountFrom(dataMap, symbol);
+                return new IntPMap<>(size - 1,
+                                    PMap.bitmapSet(dataMap, symbol),
+                                    PMap.bitmapClear(nodeMap, symbol),
+                                    insertKey(keys, i, r.keys[0]),
+                                    migrateNodeToValue(nodes, ni, i, r.nodes[0]));
+            }
+
+            return new IntPMap<>(size - 1, dataMap, nodeMap, keys, PMap.set(nodes, ni, r));
+        }
+        else {
+            // Mapping does not exist
+
+            return this;
+        }
+    }
+
+    static int[] insertKey(int[] keys, int i, int k) {
+        int[] n_keys = new int[keys.length + 1];
+        System.arraycopy(keys, 0,
+                         n_keys, 0, i);
+        n_keys[i] = k;
+        System.arraycopy(keys, i,
+                         n_keys, i + 1, keys.length - i);
+        return n_keys;
+    }
+
+    static int[] removeKey(int[] keys, int i) {
+        if (keys.length == 1)
+            return EMPTY_KEYS;
+
+        int[] n_keys = new int[keys.length - 1];
+        System.arraycopy(keys, 0,
+                         n_keys, 0, i);
+        System.arraycopy(keys, i + 1,
+                         n_keys, i, keys.length - i - 1);
+        return n_keys;
+    }
+
+    static Object[] insertValue(Object[] nodes, int i, Object v) {
+        Object[] n_nodes = new Object[nodes.length + 1];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        n_nodes[i] = v;
+        System.arraycopy(nodes, i,
+                         n_nodes, i + 1, nodes.length - i);
+        return n_nodes;
+    }
+
+    static Object[] removeValue(Object[] nodes, int i) {
+        Object[] n_nodes = new Object[nodes.length - 1];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        System.arraycopy(nodes, i + 1,
+                         n_nodes, i, nodes.length - i - 1);
+        return n_nodes;
+    }
+
+    // Replace the value at index i with node n, placed at node index ni
+    static Object[] migrateValueToNode(Object[] nodes, int i, int ni, Object n) {
+        Object[] n_nodes = new Object[nodes.length];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        System.arraycopy(nodes, i + 1,
+                         n_nodes, i, ni - i);
+        n_nodes[ni] = n;
+        System.arraycopy(nodes, ni + 1,
+                         n_nodes, ni + 1, nodes.length - ni - 1);
+        return n_nodes;
+    }
+
+    // Replace the node at node index ni with value v, placed at index i
+    static Object[] migrateNodeToValue(Object[] nodes, int ni, int i, Object v) {
+        Object[] n_nodes = new Object[nodes.length];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        n_nodes[i] = v;
+        System.arraycopy(nodes, i,
+                         n_nodes, i + 1, ni - i);
+        System.arraycopy(nodes, ni + 1,
+                         n_nodes, ni + 1, nodes.length - ni - 1);
+        return n_nodes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[ ");
+        int l = sb.length();
+        forEach((k, v) -> {
+            if (sb.length() > l) sb.append(", ");
+            sb.append(k).append(" -> ").append(v);
+        });
+        return sb.append(" ]").toString();
+    }
+}
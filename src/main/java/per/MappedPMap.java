@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+// A read-only PMap image in a file, accessed in place through a memory
+// mapped buffer.
+// The image has the layers of the PMap it was written from, and a lookup
+// navigates the layers with the same symbols and bitmaps as PMap.  Keys
+// are compared, and values decoded, directly from the buffer, so opening
+// an image does not rebuild the map and the mappings are not held on the
+// Java heap.
+//
+// The image is a header, the entries and nodes, and a trailer:
+//   header:    magic, version, key codec, value codec, size
+//   entry:     key length, key bytes, value length, value bytes
+//   layer:     dataMap, nodeMap, entry offset for each mapping node in
+//              symbol order, node reference for each sub-layer or
+//              collision node in symbol order
+//   collision: hash, count, entry offset for each mapping
+//   trailer:   offset of the root layer
+// A node reference is the offset of a layer, or the complement, ~offset,
+// of a collision node.  Nodes are written before the layers that refer to
+// them.  All values are big endian ints, and the image size is limited to
+// that of a mapped buffer.
+public final class MappedPMap<K, V> {
+    static final int MAGIC = 0x504D4150; // "PMAP"
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    // Encoding of keys and values.
+    // The hash of a key is the hash of the key object, and so must be
+    // stable across runtimes
+    public interface Codec<T> {
+        // The identifier of the codec recorded in an image
+        int id();
+
+        int length(T t);
+
+        void write(DataOutputStream out, T t) throws IOException;
+
+        T read(ByteBuffer b, int offset, int length);
+
+        // Returns true if the encoding at offset, of length, is that of t
+        boolean matches(ByteBuffer b, int offset, int length, T t);
+    }
+
+    // A string, encoded as UTF-16 chars so that a key is compared without
+    // decoding or allocation
+    public static final Codec<String> STRING = new Codec<>() {
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public int length(String s) {
+            return s.length() * Character.BYTES;
+        }
+
+        @Override
+        public void write(DataOutputStream out, String s) throws IOException {
+            out.writeChars(s);
+        }
+
+        @Override
+        public String read(ByteBuffer b, int offset, int length) {
+            char[] cs = new char[length / Character.BYTES];
+            for (int i = 0; i < cs.length; i++) {
+                cs[i] = b.getChar(offset + i * Character.BYTES);
+            }
+            return new String(cs);
+        }
+
+        @Override
+        public boolean matches(ByteBuffer b, int offset, int length, String s) {
+            if (length != s.length() * Character.BYTES) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (b.getChar(offset + i * Character.BYTES) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    public static final Codec<Integer> INT = new Codec<>() {
+        @Override
+        public int id() {
+            return 2;
+        }
+
+        @Override
+        public int length(Integer i) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(DataOutputStream out, Integer i) throws IOException {
+            out.writeInt(i);
+        }
+
+        @Override
+        public Integer read(ByteBuffer b, int offset, int length) {
+            return b.getInt(offset);
+        }
+
+        @Override
+        public boolean matches(ByteBuffer b, int offset, int length, Integer i) {
+            return b.getInt(offset) == i;
+        }
+    };
+
+    public static final Codec<Long> LONG = new Codec<>() {
+        @Override
+        public int id() {
+            return 3;
+        }
+
+        @Override
+        public int length(Long l) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(DataOutputStream out, Long l) throws IOException {
+            out.writeLong(l);
+        }
+
+        @Override
+        public Long read(ByteBuffer b, int offset, int length) {
+            return b.getLong(offset);
+        }
+
+        @Override
+        public boolean matches(ByteBuffer b, int offset, int length, Long l) {
+            return b.getLong(offset) == l;
+        }
+    };
+
+    // A byte array, for values only, since the hash of an array is
+    // not stable
+    public static final Codec<byte[]> BYTES = new Codec<>() {
+        @Override
+        public int id() {
+            return 4;
+        }
+
+        @Override
+        public int length(byte[] bs) {
+            return bs.length;
+        }
+
+        @Override
+        public void write(DataOutputStream out, byte[] bs) throws IOException {
+            out.write(bs);
+        }
+
+        @Override
+        public byte[] read(ByteBuffer b, int offset, int length) {
+            byte[] bs = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bs[i] = b.get(offset + i);
+            }
+            return bs;
+        }
+
+        @Override
+        public boolean matches(ByteBuffer b, int offset, int length, byte[] bs) {
+            if (length != bs.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (b.get(offset + i) != bs[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    final ByteBuffer b;
+    final Codec<K> keyCodec;
+    final Codec<V> valueCodec;
+    final int size;
+    final int root;
+
+    MappedPMap(ByteBuffer b, Codec<K> keyCodec, Codec<V> valueCodec) {
+        if (b.limit() < HEADER_SIZE + Integer.BYTES ||
+            b.getInt(0) != MAGIC || b.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a PMap image");
+        }
+        if (b.getInt(8) != keyCodec.id() || b.getInt(12) != valueCodec.id()) {
+            throw new IllegalArgumentException("Codecs do not match those of the image");
+        }
+
+        this.b = b;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.size = b.getInt(16);
+        this.root = b.getInt(b.limit() - Integer.BYTES);
+    }
+
+    // Maps an image, written by write, with the codecs it was written with
+    public static <K, V> MappedPMap<K, V> open(Path p, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+            return new MappedPMap<>(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), keyCodec, valueCodec);
+        }
+    }
+
+    // Writes an image of a map
+    public static <K, V> void write(PMap<K, V> m, Codec<K> keyCodec, Codec<V> valueCodec, Path p) throws IOException {
+        if (keyCodec == BYTES) {
+            throw new IllegalArgumentException("byte[] keys have no stable hash");
+        }
+        if (m.strategy != null) {
+            throw new IllegalArgumentException("Keys of an image are hashed without a strategy");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keyCodec.id());
+            out.writeInt(valueCodec.id());
+            out.writeInt(m.size);
+            int root = writeLayer(out, m, keyCodec, valueCodec);
+            out.writeInt(root);
+            // Tables written after the last offset may also overflow
+            offset(out);
+        }
+    }
+
+    // Writes the nodes of a layer then the layer, returning the offset
+    // of the layer
+    static <K, V> int writeLayer(DataOutputStream out, PMap<?, ?> m,
+                                 Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        int dataCount = Integer.bitCount(m.dataMap);
+        int[] offsets = new int[m.nodes.length - dataCount];
+        for (int i = 0; i < dataCount; i++) {
+            // Mapping node
+            offsets[i] = writeEntry(out, m.nodes[i * 2], m.nodes[i * 2 + 1], keyCodec, valueCodec);
+        }
+        for (int i = dataCount; i < offsets.length; i++) {
+            // Sub-layer and collision nodes in symbol order
+            Object n = PMap.EntrySpliterator.node(m, i);
+            if (n instanceof PMap) {
+                // Sub-layer node
+                offsets[i] = writeLayer(out, (PMap<?, ?>) n, keyCodec, valueCodec);
+            }
+            else {
+                // Collision node
+                PMap.CollisionNode c = (PMap.CollisionNode) n;
+                int[] entries = new int[c.ms.length / 2];
+                for (int j = 0; j < entries.length; j++) {
+                    entries[j] = writeEntry(out, c.ms[j * 2], c.ms[j * 2 + 1], keyCodec, valueCodec);
+                }
+                offsets[i] = ~offset(out);
+                out.writeInt(c.h);
+                out.writeInt(entries.length);
+                for (int e : entries) {
+                    out.writeInt(e);
+                }
+            }
+        }
+
+        int offset = offset(out);
+        out.writeInt(m.dataMap);
+        out.writeInt(m.nodeMap);
+        for (int o : offsets) {
+            out.writeInt(o);
+        }
+        return offset;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> int writeEntry(DataOutputStream out, Object k, Object v,
+                                 Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        int offset = offset(out);
+        out.writeInt(keyCodec.length((K) k));
+        keyCodec.write(out, (K) k);
+        out.writeInt(valueCodec.length((V) v));
+        valueCodec.write(out, (V) v);
+        return offset;
+    }
+
+    // Returns the offset of the next node written, checking the image has
+    // not outgrown int offsets
+    static int offset(DataOutputStream out) throws IOException {
+        int offset = out.size();
+        if (offset == Integer.MAX_VALUE) {
+            // The size of the stream saturates on overflow
+            throw new IOException("Image too large");
+        }
+        return offset;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Returns the value of the mapping, or null if no mapping exists
+    public V get(K k) {
+        return getOrDefault(k, null);
+    }
+
+    public V getOrDefault(K k, V defaultValue) {
+        int e = find(k);
+        return e < 0 ? defaultValue : value(e);
+    }
+
+    public boolean containsKey(K k) {
+        return find(k) >= 0;
+    }
+
+    // Returns the offset of the entry of the mapping, otherwise -1.
+    // Iterates through the layers, and does not allocate
+    int find(K k) {
+        int h = PMap.hash(k);
+        int o = root;
+        for (int dShift = 0; ; dShift += PMap.PREFIX_BIT_SIZE) {
+            int dataMap = b.getInt(o);
+            int nodeMap = b.getInt(o + 4);
+            int symbol = PMap.symbolAtDepth(h, dShift);
+            if (PMap.bitmapGet(dataMap, symbol) != 0) {
+                // Mapping node
+
+                int e = b.getInt(o + 8 + PMap.bitmapCountFrom(dataMap, symbol) * Integer.BYTES);
+                return keyMatches(e, k) ? e : -1;
+            }
+            else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+                int ref = b.getInt(o + 8 + (Integer.bitCount(dataMap) +
+                                            PMap.bitmapCountFrom(nodeMap, symbol)) * Integer.BYTES);
+                if (ref >= 0) {
+                    // Sub-layer node
+
+                    o = ref;
+                }
+                else {
+                    // Collision node
+
+                    int c = ~ref;
+                    if (b.getInt(c) != h) {
+                        return -1;
+                    }
+                    int count = b.getInt(c + 4);
+                    for (int i = 0; i < count; i++) {
+                        int e = b.getInt(c + 8 + i * Integer.BYTES);
+                        if (keyMatches(e, k)) {
+                            return e;
+                        }
+                    }
+                    return -1;
+                }
+            }
+            else {
+                // Mapping does not exist
+                return -1;
+            }
+        }
+    }
+
+    boolean keyMatches(int e, K k) {
+        return keyCodec.matches(b, e + 4, b.getInt(e), k);
+    }
+
+    K key(int e) {
+        return keyCodec.read(b, e + 4, b.getInt(e));
+    }
+
+    V value(int e) {
+        int v = e + 4 + b.getInt(e);
+        return valueCodec.read(b, v + 4, b.getInt(v));
+    }
+
+    // Decodes each mapping, in the same order as PMap.forEach
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEach(root, action);
+    }
+
+    void forEach(int o, BiConsumer<? super K, ? super V> action) {
+        int dataCount = Integer.bitCount(b.getInt(o));
+        int nodeCount = Integer.bitCount(b.getInt(o + 4));
+        for (int i = 0; i < dataCount; i++) {
+            // Mapping node
+            int e = b.getInt(o + 8 + i * Integer.BYTES);
+            action.accept(key(e), value(e));
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            int ref = b.getInt(o + 8 + (dataCount + i) * Integer.BYTES);
+            if (ref >= 0) {
+                // Sub-layer node
+                forEach(ref, action);
+            }
+            else {
+                // Collision node
+                int c = ~ref;
+                int count = b.getInt(c + 4);
+                for (int j = 0; j < count; j++) {
+                    int e = b.getInt(c + 8 + j * Integer.BYTES);
+                    action.accept(key(e), value(e));
+                }
+            }
+        }
+    }
+}
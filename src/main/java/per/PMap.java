@@ -24,59 +24,99 @@
  */
 package per;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
 import java.util.Optional;
+import java.util.Spliterator;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class PMap<K, V> {
-    static final Object SUB_LAYER_NODE = new Object();
-
-    static final Object COLLISION_NODE = new Object();
-
     static final int PREFIX_BIT_MASK = 31;
 
     static final int PREFIX_BIT_SIZE = 5;
 
+    // The result of a lookup when no mapping exists
+    static final Object NOT_FOUND = new Object();
+
     static final Object[] EMPTY_NODES = new Object[0];
 
-    static final PMap<?, ?> EMPTY_PMAP = new PMap<>();
+    static final int[] EMPTY_HASHES = new int[0];
+
+    static final PMap<?, ?> EMPTY_PMAP = new PMap<>(null);
+
+    static final PMap<?, ?> EMPTY_HASHES_PMAP = new PMap<>(EMPTY_HASHES);
 
     // @@@ This may only needed for the root, break out to PMap and Node?
     //     although this value is useful for a SIZED & SUBSIZED spliterator
     // @Stable
     final int size;
-    // bit map of symbols
+    // bit map of symbols of mapping nodes
+    // @Stable
+    final int dataMap;
+    // bit map of symbols of sub-layer and collision nodes
     // @Stable
-    final int bitmap;
-    // [..., k, v, ....] or
-    // [..., SUB_LAYER_NODE, PMap, ...] or
-    // [..., COLLISION_NODE, CollisionNode, ...] or
-    // invariant: a sub-layer will not consist of a single mapping node
-    // @@@ mapping nodes, and sub-layer nodes could be rearranged to be
-    // contiguous, with mapping nodes first, and sub-layer nodes last and
-    // reversed. This simplifies traversal, but requires two bit sets.
+    final int nodeMap;
+    // [k, v, ..., k, v, n, ..., n]
+    // Mapping nodes are contiguous and first, in symbol order, followed
+    // by sub-layer nodes, PMap, and collision nodes, CollisionNode, which
+    // are contiguous, last, and in reverse symbol order
+    // invariant: a sub-layer will not consist of a single mapping node,
+    // or of a single collision node.  Thus the layout is canonical, two
+    // maps with the same mappings have the same shape
     // @Stable
     final Object[] nodes;
-
-    private PMap() { // empty
-        size = 0;
-        bitmap = 0;
-        nodes = EMPTY_NODES;
+    // [h, ..., h]
+    // Hashes of the keys of the mapping nodes, in the same order, or
+    // null if hashes are not cached.  Caching is a property of the whole
+    // map, either all nodes cache hashes or none do
+    // @Stable
+    final int[] hashes;
+    // The hash code of the mappings, computed lazily, or 0 if not yet
+    // computed
+    int hashCode;
+    // The strategy hashing keys, or null if keys are hashed by hash.
+    // Keys are hashed only when looked up or put at the root layer, so
+    // only the root layer records the strategy, sub-layers record null.
+    // A map with a strategy caches hashes
+    final HashStrategy strategy;
+
+    private PMap(int[] hashes) { // empty
+        this(0, 0, 0, EMPTY_NODES, hashes);
     }
 
     private PMap(K k, V v, int levelShift) {
-        this(1, 1 << symbolAtDepth(hash(k), levelShift), new Object[]{k, v});
+        this(1, 1 << symbolAtDepth(hash(k), levelShift), 0, new Object[]{k, v}, null);
     }
 
-    private PMap(CollisionNode c, int levelShift) {
-        this(c.ms.length / 2, 1 << symbolAtDepth(c.h, levelShift), new Object[]{COLLISION_NODE, c});
+    private PMap(CollisionNode c, int levelShift, int[] hashes, HashStrategy st) {
+        this(c.ms.length / 2, 0, 1 << symbolAt(c.ms[0], c.h, levelShift, st), new Object[]{c}, hashes);
     }
 
-    PMap(int size, int bitmap, Object[] nodes) {
+    PMap(int size, int dataMap, int nodeMap, Object[] nodes, int[] hashes) {
+        this(size, dataMap, nodeMap, nodes, hashes, null);
+    }
+
+    PMap(int size, int dataMap, int nodeMap, Object[] nodes, int[] hashes, HashStrategy strategy) {
         this.size = size;
-        this.bitmap = bitmap;
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
         this.nodes = nodes;
+        this.hashes = hashes;
+        this.strategy = strategy;
     }
 
     @SuppressWarnings("unchecked")
@@ -84,6 +124,32 @@ public class PMap<K, V> {
         return (PMap<K, V>) EMPTY_PMAP;
     }
 
+    // Returns an empty map that caches the hash of each key alongside
+    // the key.  Mappings nodes whose hashes differ are rejected without
+    // calling equals, and keys are never rehashed when a mapping node
+    // is replaced with a sub-layer or collision node.  This is
+    // beneficial for keys whose equals or hashCode is expensive, at the
+    // cost of an int per mapping
+    @SuppressWarnings("unchecked")
+    public static <K, V> PMap<K, V> emptyCachingHashes() {
+        return (PMap<K, V>) EMPTY_HASHES_PMAP;
+    }
+
+    // Returns an empty map whose keys are hashed by a strategy.
+    // Use withMutations to build such a map with a builder
+    public static <K, V> PMap<K, V> empty(HashStrategy strategy) {
+        return new PMap<>(0, 0, 0, EMPTY_NODES, EMPTY_HASHES, Objects.requireNonNull(strategy));
+    }
+
+    // Returns an empty map with the same hash caching and strategy as
+    // this map
+    PMap<K, V> emptyLike() {
+        if (strategy != null) {
+            return new PMap<>(0, 0, 0, EMPTY_NODES, EMPTY_HASHES, strategy);
+        }
+        return hashes == null ? empty() : emptyCachingHashes();
+    }
+
     public static <K, V> PMap<K, V> of(Consumer<PMapBuilder<K, V>> c) {
         PMapBuilder<K, V> b = new PMapBuilder<>();
         PMap<K, V> m = null;
@@ -99,20 +165,77 @@ public class PMap<K, V> {
         return m;
     }
 
+    // Builds a map from a collection of mappings, in parallel, using the
+    // common fork/join pool.  If there are mappings with equal keys then
+    // the last one, in the encounter order of the collection, is retained
+    public static <K, V> PMap<K, V> ofParallel(Collection<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        return PMapBuilder.buildParallel(entries);
+    }
+
     public static <K, V> PMap<K, V> of(K k, V v) {
         return new PMap<>(k, v, 0);
     }
 
+    // Returns a builder whose initial mappings are those of this map.
+    // Nodes of this map are copied by the builder at most once, when
+    // first modified, and thereafter modified in place.
+    public PMapBuilder<K, V> toBuilder() {
+        return new PMapBuilder<>(this);
+    }
+
+    // Applies a batch of modifications to a builder starting from this map
+    public PMap<K, V> withMutations(Consumer<PMapBuilder<K, V>> c) {
+        PMapBuilder<K, V> b = toBuilder();
+        PMap<K, V> m = null;
+        try {
+            c.accept(b);
+            m = b.build();
+        } finally {
+            if (m == null) {
+                // Exception occurred
+                b.clear();
+            }
+        }
+        return m;
+    }
+
     static int symbolAtDepth(int h, int dShift) { // bit string prefix at depth
         return (h >>> dShift) & PREFIX_BIT_MASK;
     }
 
+    static int symbolAtDepth(long h, int dShift) { // bit string prefix at depth
+        return (int) (h >>> dShift) & PREFIX_BIT_MASK;
+    }
+
+    // The symbol of a key, whose hash is h, at a depth.  The layers beyond
+    // those consuming the hash consume the hashes of the key at subsequent
+    // levels of the strategy, the first layer of level l at l * LEVEL_SHIFT
+    static int symbolAt(Object k, int h, int dShift, HashStrategy st) {
+        if (dShift < LEVEL_SHIFT) {
+            return symbolAtDepth(h, dShift);
+        }
+        return symbolAtDepth(st.hash(k, dShift / LEVEL_SHIFT), dShift % LEVEL_SHIFT);
+    }
+
+    // True if two keys, whose hashes are equal, have equal hashes at all
+    // levels of the strategy, and so are held in a collision node
+    static boolean equalLevelHashes(Object k0, Object k1, HashStrategy st) {
+        if (st != null) {
+            for (int level = 1; level < HashStrategy.LEVELS; level++) {
+                if (st.hash(k0, level) != st.hash(k1, level)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     static int bitmapGet(int bitmap, int symbol) {
         return bitmap & (1 << symbol);
     }
 
     static int bitmapSet(int bitmap, int symbol) {
-        return bitmap | ~(1 << symbol);
+        return bitmap | (1 << symbol);
     }
 
     static int bitmapClear(int bitmap, int symbol) {
@@ -123,227 +246,391 @@ public class PMap<K, V> {
         return Integer.bitCount(bitmap & ((1 << symbol) - 1));
     }
 
+    // Index in the nodes of the key of a mapping node
+    static int dataIndex(int dataMap, int symbol) {
+        return bitmapCountFrom(dataMap, symbol) * 2;
+    }
+
+    // Index in the nodes of a sub-layer or collision node
+    static int nodeIndex(Object[] nodes, int nodeMap, int symbol) {
+        return nodes.length - 1 - bitmapCountFrom(nodeMap, symbol);
+    }
+
     static int hash(Object key) {
         int h;
         return (key == null) ? 0 : (h = key.hashCode()) ^ (h >>> 16);
     }
 
+    // The hash of a key looked up or put at this root layer
+    int hashOf(Object key) {
+        return strategy == null ? hash(key) : strategy.hash(key);
+    }
+
+    // Node array operations, each returning a new node array
+
+    // Insert a mapping node at data index i
+    static Object[] insertData(Object[] nodes, int i, Object k, Object v) {
+        Object[] n_nodes = new Object[nodes.length + 2];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        n_nodes[i] = k;
+        n_nodes[i + 1] = v;
+        System.arraycopy(nodes, i,
+                         n_nodes, i + 2, nodes.length - i);
+        return n_nodes;
+    }
+
+    // Remove the mapping node at data index i
+    static Object[] removeData(Object[] nodes, int i) {
+        Object[] n_nodes = new Object[nodes.length - 2];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        System.arraycopy(nodes, i + 2,
+                         n_nodes, i, nodes.length - i - 2);
+        return n_nodes;
+    }
+
+    // Replace the mapping node at data index di with node n, placed at node
+    // index ni of the new node array
+    static Object[] migrateDataToNode(Object[] nodes, int di, int ni, Object n) {
+        Object[] n_nodes = new Object[nodes.length - 1];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, di);
+        System.arraycopy(nodes, di + 2,
+                         n_nodes, di, ni - di);
+        n_nodes[ni] = n;
+        System.arraycopy(nodes, ni + 2,
+                         n_nodes, ni + 1, nodes.length - ni - 2);
+        return n_nodes;
+    }
+
+    // Replace the node at node index ni with a mapping node placed at data
+    // index di of the new node array
+    static Object[] migrateNodeToData(Object[] nodes, int ni, int di, Object k, Object v) {
+        Object[] n_nodes = new Object[nodes.length + 1];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, di);
+        n_nodes[di] = k;
+        n_nodes[di + 1] = v;
+        System.arraycopy(nodes, di,
+                         n_nodes, di + 2, ni - di);
+        System.arraycopy(nodes, ni + 1,
+                         n_nodes, ni + 2, nodes.length - ni - 1);
+        return n_nodes;
+    }
+
+    // Set index i to o
+    static Object[] set(Object[] nodes, int i, Object o) {
+        Object[] n_nodes = nodes.clone();
+        n_nodes[i] = o;
+        return n_nodes;
+    }
+
+    // Hash array operations, each returning a new hash array, or null if
+    // hashes are not cached.  The index is the data index of the
+    // mapping node, i.e. half the index of the key in the nodes
+
+    // Insert a hash at index i
+    static int[] insertHash(int[] hashes, int i, int h) {
+        if (hashes == null)
+            return null;
+
+        int[] n_hashes = new int[hashes.length + 1];
+        System.arraycopy(hashes, 0,
+                         n_hashes, 0, i);
+        n_hashes[i] = h;
+        System.arraycopy(hashes, i,
+                         n_hashes, i + 1, hashes.length - i);
+        return n_hashes;
+    }
+
+    // Remove the hash at index i
+    static int[] removeHash(int[] hashes, int i) {
+        if (hashes == null)
+            return null;
+
+        int[] n_hashes = new int[hashes.length - 1];
+        System.arraycopy(hashes, 0,
+                         n_hashes, 0, i);
+        System.arraycopy(hashes, i + 1,
+                         n_hashes, i, hashes.length - i - 1);
+        return n_hashes;
+    }
+
+    // Hashes for a node with two mapping nodes, in order
+    static int[] twoHashes(int[] hashes, int h0, int h1) {
+        return hashes == null ? null : new int[]{h0, h1};
+    }
+
+    // The hash of the key of the mapping node at data index i
+    static int hashAt(Object[] nodes, int[] hashes, int i) {
+        return hashes != null ? hashes[i] : hash(nodes[i * 2]);
+    }
+
+    public int size() {
+        return size;
+    }
+
     public void forEach(BiConsumer<? super K, ? super V> action) {
-        for (int i = 0; i < nodes.length; i += 2) {
+        int dataEnd = Integer.bitCount(dataMap) * 2;
+        for (int i = 0; i < dataEnd; i += 2) {
+            // Mapping node
+
             @SuppressWarnings("unchecked")
             K k = (K) nodes[i];
-            if (k == SUB_LAYER_NODE) {
+            @SuppressWarnings("unchecked")
+            V v = (V) nodes[i + 1];
+            action.accept(k, v);
+        }
+        for (int i = nodes.length - 1; i >= dataEnd; i--) {
+            Object n = nodes[i];
+            if (n instanceof PMap) {
                 // Sub-layer node
 
                 @SuppressWarnings("unchecked")
-                PMap<K, V> s = (PMap<K, V>) nodes[i + 1];
+                PMap<K, V> s = (PMap<K, V>) n;
                 s.forEach(action);
             }
-            else if (k == COLLISION_NODE) {
+            else {
                 // Collision node
 
-                CollisionNode c = (CollisionNode) nodes[i + 1];
+                CollisionNode c = (CollisionNode) n;
                 c.forEach(action);
             }
-            else {
-                // Mapping node
-
-                @SuppressWarnings("unchecked")
-                V v = (V) nodes[i + 1];
-                action.accept(k, v);
-            }
         }
     }
 
     public Optional<V> get(K k) {
-        return get(k, hash(k), 0);
-    }
-
-    private Optional<V> get(K k, int h, int dShift) {
-        int symbol = symbolAtDepth(h, dShift);
-        if (bitmapGet(bitmap, symbol) == 0) {
-            // Mapping does not exist
+        Object v = find(k);
+        if (v == NOT_FOUND) {
             return Optional.empty();
         }
 
-        int nodeCount = bitmapCountFrom(bitmap, symbol);
-        Object _k = nodes[nodeCount * 2];
-        if (_k == SUB_LAYER_NODE) {
-            // Sub-layer node
+        @SuppressWarnings("unchecked")
+        V _v = (V) v;
+        return Optional.of(_v);
+    }
 
-            @SuppressWarnings("unchecked")
-            PMap<K, V> s = (PMap<K, V>) nodes[nodeCount * 2 + 1];
-            return s.get(k, h, dShift + PREFIX_BIT_SIZE);
-        }
-        else if (k == COLLISION_NODE) {
-            // Collision node
+    // Returns the value of the mapping, or null if no mapping exists.
+    // A null value of a mapping cannot be distinguished from no mapping
+    public V getOrNull(K k) {
+        return getOrDefault(k, null);
+    }
 
-            CollisionNode c = (CollisionNode) nodes[nodeCount * 2 + 1];
-            return c.get(k, h);
+    public V getOrDefault(K k, V defaultValue) {
+        Object v = find(k);
+        if (v == NOT_FOUND) {
+            return defaultValue;
         }
-        else {
-            // Mapping node
-            // @@@ can compare hash codes first if cached
 
-            if (_k.equals(k)) {
-                // Mapping exists
+        @SuppressWarnings("unchecked")
+        V _v = (V) v;
+        return _v;
+    }
 
-                @SuppressWarnings("unchecked")
-                V _v = (V) nodes[nodeCount * 2 + 1];
-                return Optional.of(_v);
+    public boolean containsKey(K k) {
+        return find(k) != NOT_FOUND;
+    }
+
+    // Returns the value of the mapping, otherwise NOT_FOUND.
+    // Iterates through the sub-layers, rather than recursing, and does
+    // not allocate
+    private Object find(Object k) {
+        return find(this, k, hashOf(k), 0, strategy);
+    }
+
+    // Returns the value of the mapping in a layer at a depth, otherwise
+    // NOT_FOUND
+    private static Object find(PMap<?, ?> m, Object k, int h, int dShift, HashStrategy st) {
+        for (; ; dShift += PREFIX_BIT_SIZE) {
+            int symbol = symbolAt(k, h, dShift, st);
+            if (bitmapGet(m.dataMap, symbol) != 0) {
+                // Mapping node
+
+                int i = dataIndex(m.dataMap, symbol);
+                if ((m.hashes == null || m.hashes[i >> 1] == h) && m.nodes[i].equals(k)) {
+                    // Mapping exists
+                    return m.nodes[i + 1];
+                }
+
+                return NOT_FOUND;
             }
+            else if (bitmapGet(m.nodeMap, symbol) != 0) {
+                Object n = m.nodes[nodeIndex(m.nodes, m.nodeMap, symbol)];
+                if (n instanceof PMap) {
+                    // Sub-layer node
 
-            return Optional.empty();
+                    m = (PMap<?, ?>) n;
+                }
+                else {
+                    // Collision node
+
+                    return ((CollisionNode) n).find(k, h);
+                }
+            }
+            else {
+                // Mapping does not exist
+                return NOT_FOUND;
+            }
         }
     }
 
     public PMap<K, V> put(K k, V v) {
-        return put(k, v, hash(k), 0);
+        return put(k, v, hashOf(k), 0, strategy);
     }
 
-    private PMap<K, V> put(K k, V v, int h, int dShift) {
-        int symbol = symbolAtDepth(h, dShift);
+    private PMap<K, V> put(K k, V v, int h, int dShift, HashStrategy st) {
+        int symbol = symbolAt(k, h, dShift, st);
 
-        int bit = bitmapGet(bitmap, symbol);
-
-        if (bit == 0) {
-            // Mapping node is free
-
-            int levelCount = Integer.bitCount(bitmap);
-
-            // Create a new node array with an increased size of one
-            Object[] n_nodes = Arrays.copyOf(nodes, levelCount * 2 + 2);
+        if (bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing mapping node
 
-            // Count the number of nodes to the left of the new mapping node
-            int nodeCount = bitmapCountFrom(bitmap, symbol);
-            // Expand for the new mapping node
-            System.arraycopy(n_nodes, nodeCount * 2,
-                             n_nodes, nodeCount * 2 + 2, (levelCount - nodeCount) * 2);
+            int i = dataIndex(dataMap, symbol);
+            Object _k = nodes[i];
+            int _h = hashes != null ? hashes[i >> 1] : Integer.MIN_VALUE;
+            if ((hashes == null || _h == h) && _k.equals(k)) {
+                // Replace value
 
-            // Set the bit of the mapping node
-            int n_bitmap = bitmap | (1 << symbol);
+                return new PMap<>(size, dataMap, nodeMap, set(nodes, i + 1, v), hashes, strategy);
+            }
 
-            // Set the mapping node
-            n_nodes[nodeCount * 2] = k;
-            n_nodes[nodeCount * 2 + 1] = v;
+            Object _v = nodes[i + 1];
+            if (hashes == null) {
+                _h = hash(_k);
+            }
+            Object n;
+            if (h == _h && equalLevelHashes(_k, k, st)) {
+                // Replace mapping node with collision node
+                n = new CollisionNode(h, new Object[]{_k, _v, k, v});
+            }
+            else {
+                // Replace mapping node with a sub-layer node
+                n = mergeTwo(_k, _v, _h, k, v, h, dShift + PREFIX_BIT_SIZE, hashes, st);
+            }
 
-            // Return a new map at the same level
-            return new PMap<>(size + 1, n_bitmap, n_nodes);
+            int ni = nodes.length - 2 - bitmapCountFrom(nodeMap, symbol);
+            return new PMap<>(size + 1,
+                              bitmapClear(dataMap, symbol),
+                              bitmapSet(nodeMap, symbol),
+                              migrateDataToNode(nodes, i, ni, n),
+                              removeHash(hashes, i >> 1), strategy);
         }
+        else if (bitmapGet(nodeMap, symbol) != 0) {
+            int ni = nodeIndex(nodes, nodeMap, symbol);
+            Object n = nodes[ni];
+            if (n instanceof PMap) {
+                // Sub-layer node
 
-        int nodeCount = bitmapCountFrom(bitmap, symbol);
-        Object _k = nodes[nodeCount * 2];
-        if (_k == SUB_LAYER_NODE) {
-            // Sub-layer node
-
-            @SuppressWarnings("unchecked")
-            PMap<K, V> s = (PMap<K, V>) nodes[nodeCount * 2 + 1];
+                @SuppressWarnings("unchecked")
+                PMap<K, V> s = (PMap<K, V>) n;
+                PMap<K, V> r = s.put(k, v, h, dShift + PREFIX_BIT_SIZE, st);
 
-            Object[] n_nodes = nodes.clone();
-            n_nodes[nodeCount * 2 + 1] = s.put(k, v, h, dShift + PREFIX_BIT_SIZE);
+                return new PMap<>(size + r.size - s.size, dataMap, nodeMap, set(nodes, ni, r), hashes, strategy);
+            }
 
-            return new PMap<>(size + 1, bitmap, n_nodes);
-        }
-        else if (_k == COLLISION_NODE) {
             // Collision node
 
-            CollisionNode c = (CollisionNode) nodes[nodeCount * 2 + 1];
-
-            Object[] n_nodes = nodes.clone();
-            if (h == c.h) {
+            CollisionNode c = (CollisionNode) n;
+            if (h == c.h && (st == null || c.indexOf(k) >= 0 || equalLevelHashes(c.ms[0], k, st))) {
                 // Collision with existing keys in collision node
-                n_nodes[nodeCount * 2 + 1] = c.add(new Object[]{k, v});
+                CollisionNode r = c.put(k, v);
+                return new PMap<>(size + (r.ms.length - c.ms.length) / 2, dataMap, nodeMap,
+                                  set(nodes, ni, r), hashes, strategy);
             }
             else {
                 // Replace collision node with a sub-layer node
-                n_nodes[nodeCount * 2] = SUB_LAYER_NODE;
-                n_nodes[nodeCount * 2 + 1] = new PMap<>(c, dShift + PREFIX_BIT_SIZE).
-                        put(k, v, h, dShift + PREFIX_BIT_SIZE);
+                PMap<K, V> r = new PMap<K, V>(c, dShift + PREFIX_BIT_SIZE, hashes == null ? null : EMPTY_HASHES, st).
+                        put(k, v, h, dShift + PREFIX_BIT_SIZE, st);
+                return new PMap<>(size + 1, dataMap, nodeMap, set(nodes, ni, r), hashes, strategy);
             }
-            return new PMap<>(size + 1, bitmap, n_nodes);
         }
         else {
-            // Prefix conflict with existing mapping node
-            // @@@ can compare hash codes first if cached
-
-            if (_k.equals(k)) {
-                // Replace value
+            // Mapping node is free
 
-                Object[] n_nodes = nodes.clone();
-                n_nodes[nodeCount * 2 + 1] = v;
-                return new PMap<>(size + 1, bitmap, n_nodes);
-            }
+            int i = dataIndex(dataMap, symbol);
+            return new PMap<>(size + 1,
+                              bitmapSet(dataMap, symbol),
+                              nodeMap,
+                              insertData(nodes, i, k, v),
+                              insertHash(hashes, i >> 1, h), strategy);
+        }
+    }
 
-            Object[] n_nodes = nodes.clone();
-            Object _v = n_nodes[nodeCount * 2 + 1];
-            if (h == hash(_k)) {
-                // Replace mapping node with collision node
-                n_nodes[nodeCount * 2] = COLLISION_NODE;
-                n_nodes[nodeCount * 2 + 1] = new CollisionNode(h, new Object[]{_k, _v, k, v});
+    // Create a sub-layer node, at a depth, from two mappings with different
+    // hashes, at some level of the strategy.  The node caches hashes if the
+    // given hashes are non-null
+    static <K, V> PMap<K, V> mergeTwo(Object k0, Object v0, int h0,
+                                      Object k1, Object v1, int h1,
+                                      int dShift, int[] hashes, HashStrategy st) {
+        int s0 = symbolAt(k0, h0, dShift, st);
+        int s1 = symbolAt(k1, h1, dShift, st);
+        if (s0 != s1) {
+            if (s0 < s1) {
+                return new PMap<>(2, (1 << s0) | (1 << s1), 0,
+                                  new Object[]{k0, v0, k1, v1}, twoHashes(hashes, h0, h1));
             }
             else {
-                // Replace mapping node with a sub-layer node
-                n_nodes[nodeCount * 2] = SUB_LAYER_NODE;
-                n_nodes[nodeCount * 2 + 1] = new PMap<>(_k, _v, dShift + PREFIX_BIT_SIZE).
-                        put(k, v, h, dShift + PREFIX_BIT_SIZE);
+                return new PMap<>(2, (1 << s0) | (1 << s1), 0,
+                                  new Object[]{k1, v1, k0, v0}, twoHashes(hashes, h1, h0));
             }
-
-            return new PMap<>(size + 1, bitmap, n_nodes);
+        }
+        else {
+            // Prefix conflict at this depth
+            PMap<K, V> s = mergeTwo(k0, v0, h0, k1, v1, h1, dShift + PREFIX_BIT_SIZE, hashes, st);
+            return new PMap<>(2, 0, 1 << s0, new Object[]{s}, hashes == null ? null : EMPTY_HASHES);
         }
     }
 
     public PMap<K, V> remove(K k) {
-        return remove(k, hash(k), 0);
+        return remove(k, hashOf(k), 0, strategy);
     }
 
-    private PMap<K, V> remove(K k, int h, int dShift) {
-        int symbol = symbolAtDepth(h, dShift);
+    private PMap<K, V> remove(K k, int h, int dShift, HashStrategy st) {
+        int symbol = symbolAt(k, h, dShift, st);
 
-        int bit = bitmapGet(bitmap, symbol);
-
-        if (bit == 0) {
-            // Mapping does not exist
+        if (bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing mapping node
 
-            return this;
-        }
+            int i = dataIndex(dataMap, symbol);
+            if ((hashes != null && hashes[i >> 1] != h) || !nodes[i].equals(k)) {
+                // Mapping does not exist
 
-        int nodeCount = bitmapCountFrom(bitmap, symbol);
-        @SuppressWarnings("unchecked")
-        K _k = (K) nodes[nodeCount * 2];
-        if (_k == SUB_LAYER_NODE) {
-            // Sub-layer node
+                return this;
+            }
 
-            @SuppressWarnings("unchecked")
-            PMap<K, V> s = (PMap<K, V>) nodes[nodeCount * 2 + 1];
-            PMap<K, V> r = s.remove(k, h, dShift + PREFIX_BIT_SIZE);
+            // Remove mapping
 
-            if (r == s) {
-                // No mapping exists
+            if (size == 1) {
+                // Empty layer
 
-                return this;
+                return emptyLike();
             }
 
-            int r_bitmap = r.bitmap;
-            if ((r_bitmap & (r_bitmap - 1)) == 0) {
-                // One mapping node remaining in child, fold into parent to
-                // retain mapping node count invariant
-                // @@@ How to fold this into the parent without allocation?
+            return new PMap<>(size - 1, bitmapClear(dataMap, symbol), nodeMap,
+                              removeData(nodes, i), removeHash(hashes, i >> 1), strategy);
+        }
+        else if (bitmapGet(nodeMap, symbol) != 0) {
+            int ni = nodeIndex(nodes, nodeMap, symbol);
+            Object n = nodes[ni];
+            if (n instanceof PMap) {
+                // Sub-layer node
+
+                @SuppressWarnings("unchecked")
+                PMap<K, V> s = (PMap<K, V>) n;
+                PMap<K, V> r = s.remove(k, h, dShift + PREFIX_BIT_SIZE, st);
+
+                if (r == s) {
+                    // No mapping exists
+
+                    return this;
+                }
 
-                Object[] n_nodes = nodes.clone();
-                Object[] r_nodes = r.nodes;
-                n_nodes[nodeCount * 2] = r_nodes[0];
-                n_nodes[nodeCount * 2 + 1] = r_nodes[1];
-                return new PMap<>(size - 1, bitmap, n_nodes);
+                return withRemovedFromSubLayer(symbol, ni, r);
             }
 
-            Object[] n_nodes = nodes.clone();
-            n_nodes[nodeCount * 2 + 1] = r;
-            return new PMap<>(size - 1, bitmap, n_nodes);
-        }
-        else if (_k == COLLISION_NODE) {
             // Collision node
 
-            CollisionNode c = (CollisionNode) nodes[nodeCount * 2 + 1];
+            CollisionNode c = (CollisionNode) n;
 
             if (h != c.h) {
                 // Mapping does not exist
@@ -358,116 +645,1656 @@ public class PMap<K, V> {
                 return this;
             }
 
-            Object[] n_nodes = nodes.clone();
-            if (r.ms.length == 2) {
-                // Fold into node array to retain collision node count invariant
-                // @@@ How to fold this into the parent without allocation?
-                n_nodes[nodeCount * 2] = r.ms[0];
-                n_nodes[nodeCount * 2 + 1] = r.ms[1];
-            }
-            else {
-                n_nodes[nodeCount * 2 + 1] = r;
-            }
-            return new PMap<>(size - 1, bitmap, n_nodes);
+            return withRemovedFromCollision(symbol, ni, r);
         }
         else {
-            // Prefix conflict with existing mapping node
-            // @@@ can compare hash codes first if cached
+            // Mapping does not exist
 
-            if (!_k.equals(k)) {
-                // Mapping does not exist
+            return this;
+        }
+    }
 
-                return this;
-            }
+    // Replace the sub-layer node at symbol and node index ni with the
+    // result of removing one mapping from it
+    private PMap<K, V> withRemovedFromSubLayer(int symbol, int ni, PMap<K, V> r) {
+        if (r.nodeMap == 0 && r.size == 1) {
+            // One mapping node remaining in child, fold into parent
+            // to retain mapping node count invariant
+            // @@@ How to fold this into the parent without allocation?
+
+            int i = dataIndex(dataMap, symbol);
+            return new PMap<>(size - 1,
+                              bitmapSet(dataMap, symbol),
+                              bitmapClear(nodeMap, symbol),
+                              migrateNodeToData(nodes, ni, i, r.nodes[0], r.nodes[1]),
+                              insertHash(hashes, i >> 1, hashes == null ? 0 : r.hashes[0]), strategy);
+        }
+        if (r.dataMap == 0 && r.nodes.length == 1 && r.nodes[0] instanceof CollisionNode) {
+            // One collision node remaining in child, fold into parent
+            // to retain collision node count invariant
 
-            // Remove mapping
+            return new PMap<>(size - 1, dataMap, nodeMap, set(nodes, ni, r.nodes[0]), hashes, strategy);
+        }
 
-            int levelCount = Integer.bitCount(bitmap);
+        return new PMap<>(size - 1, dataMap, nodeMap, set(nodes, ni, r), hashes, strategy);
+    }
 
-            if (levelCount == 1) {
-                // Empty layer
+    // Replace the collision node at symbol and node index ni with the
+    // result of removing one mapping from it
+    private PMap<K, V> withRemovedFromCollision(int symbol, int ni, CollisionNode r) {
+        if (r.ms.length == 2) {
+            // Fold into node array to retain collision node count invariant
+            int i = dataIndex(dataMap, symbol);
+            return new PMap<>(size - 1,
+                              bitmapSet(dataMap, symbol),
+                              bitmapClear(nodeMap, symbol),
+                              migrateNodeToData(nodes, ni, i, r.ms[0], r.ms[1]),
+                              insertHash(hashes, i >> 1, r.h), strategy);
+        }
 
-                return empty();
-            }
+        return new PMap<>(size - 1, dataMap, nodeMap, set(nodes, ni, r), hashes, strategy);
+    }
 
-            Object[] n_nodes = new Object[levelCount * 2 - 2];
-            // Shrink for the removed mapping node
-            // Copy nodes before removed node
-            System.arraycopy(nodes, 0,
-                             n_nodes, 0, nodeCount * 2);
-            // Copy nodes after removed node
-            System.arraycopy(nodes, nodeCount * 2 + 2,
-                             n_nodes, nodeCount * 2, (levelCount - nodeCount - 1) * 2);
-            int n_bitmap = bitmapClear(bitmap, symbol);
-            return new PMap<>(size - 1, n_bitmap, n_nodes);
-        }
+    // Computes a new value, or no value, from the current value of a
+    // mapping, or NOT_FOUND if no mapping exists.  Returns the current
+    // value to leave the map unchanged, or NOT_FOUND to remove any mapping
+    private interface Remapping {
+        Object apply(Object k, Object v);
     }
 
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder("[ ");
-        int l = sb.length();
-        forEach((k, v) -> {
-            if (sb.length() > l) sb.append(", ");
-            sb.append(k).append(" -> ").append(v);
+    // Returns a map where the value associated with a key is the result
+    // of a function applied to the key and the current value, or null if
+    // there is no mapping.  If the result is null the mapping is removed.
+    // The trie is traversed once, and this map is returned if the result
+    // is identical to the current value
+    public PMap<K, V> compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return update(k, hashOf(k), 0, strategy, (_k, v) -> {
+            @SuppressWarnings("unchecked")
+            V nv = f.apply(k, v == NOT_FOUND ? null : (V) v);
+            return nv == null ? NOT_FOUND : nv;
         });
-        return sb.append(" ]").toString();
     }
 
-    static class CollisionNode {
-        final int h;
-        final Object[] ms;
-        // invariant: ms.length >= 4, at least two mappings
+    // Returns a map where a key with no mapping, or mapped to null, is
+    // associated with the result of a function applied to the key, unless
+    // the result is null
+    public PMap<K, V> computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return update(k, hashOf(k), 0, strategy, (_k, v) -> {
+            if (v != NOT_FOUND && v != null) {
+                return v;
+            }
+            V nv = f.apply(k);
+            return nv == null ? v : nv;
+        });
+    }
 
-        CollisionNode(int h, Object[] ms) {
-            this.h = h;
-            this.ms = ms;
-        }
+    // Returns a map where the value associated with a key mapped to a
+    // non-null value is the result of a function applied to the key and
+    // the value.  If the result is null the mapping is removed
+    public PMap<K, V> computeIfPresent(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return update(k, hashOf(k), 0, strategy, (_k, v) -> {
+            if (v == NOT_FOUND || v == null) {
+                return v;
+            }
+            @SuppressWarnings("unchecked")
+            V nv = f.apply(k, (V) v);
+            return nv == null ? NOT_FOUND : nv;
+        });
+    }
 
-        CollisionNode(CollisionNode that, Object[] vs) {
-            this.h = that.h;
-            this.ms = Arrays.copyOf(that.ms, that.ms.length + vs.length);
-            System.arraycopy(vs, 0,
-                             ms, that.ms.length, vs.length);
-        }
+    // Returns a map where a key with no mapping, or mapped to null, is
+    // associated with a non-null value, otherwise the value is the result
+    // of a function applied to the current value and the value.  If the
+    // result is null the mapping is removed
+    public PMap<K, V> merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        Objects.requireNonNull(v);
+        return update(k, hashOf(k), 0, strategy, (_k, _v) -> {
+            if (_v == NOT_FOUND || _v == null) {
+                return v;
+            }
+            @SuppressWarnings("unchecked")
+            V nv = f.apply((V) _v, v);
+            return nv == null ? NOT_FOUND : nv;
+        });
+    }
+
+    // Applies a remapping to the mapping of a key in a layer at a depth.
+    // The remapping is applied at the layer holding the mapping, or where
+    // the mapping would be placed, and the layers on the path are copied
+    // only if the value changes
+    @SuppressWarnings("unchecked")
+    private PMap<K, V> update(K k, int h, int dShift, HashStrategy st, Remapping r) {
+        int symbol = symbolAt(k, h, dShift, st);
 
-        CollisionNode add(Object[] vs) {
-            return new CollisionNode(this, vs);
+        if (bitmapGet(dataMap, symbol) != 0) {
+            int i = dataIndex(dataMap, symbol);
+            if ((hashes == null || hashes[i >> 1] == h) && nodes[i].equals(k)) {
+                // Mapping exists
+                Object v = nodes[i + 1];
+                Object nv = r.apply(k, v);
+                if (nv == v) {
+                    return this;
+                }
+                if (nv == NOT_FOUND) {
+                    // Remove mapping
+                    if (size == 1) {
+                        return emptyLike();
+                    }
+                    return new PMap<>(size - 1, bitmapClear(dataMap, symbol), nodeMap,
+                                      removeData(nodes, i), removeHash(hashes, i >> 1), strategy);
+                }
+                return new PMap<>(size, dataMap, nodeMap, set(nodes, i + 1, nv), hashes, strategy);
+            }
         }
+        else if (bitmapGet(nodeMap, symbol) != 0) {
+            int ni = nodeIndex(nodes, nodeMap, symbol);
+            Object n = nodes[ni];
+            if (n instanceof PMap) {
+                // Sub-layer node
+                PMap<K, V> s = (PMap<K, V>) n;
+                PMap<K, V> rs = s.update(k, h, dShift + PREFIX_BIT_SIZE, st, r);
+                if (rs == s) {
+                    return this;
+                }
+                if (rs.size < s.size) {
+                    return withRemovedFromSubLayer(symbol, ni, rs);
+                }
+                return new PMap<>(size + rs.size - s.size, dataMap, nodeMap, set(nodes, ni, rs), hashes, strategy);
+            }
 
-        @SuppressWarnings("unchecked")
-        <K, V> void forEach(BiConsumer<? super K, ? super V> action) {
-            for (int i = 0; i < ms.length; i += 2) {
-                action.accept((K) ms[i], (V) ms[i + 1]);
+            CollisionNode c = (CollisionNode) n;
+            int ci;
+            if (h == c.h && (ci = c.indexOf(k)) >= 0) {
+                // Mapping exists in collision node
+                Object v = c.ms[ci + 1];
+                Object nv = r.apply(k, v);
+                if (nv == v) {
+                    return this;
+                }
+                if (nv == NOT_FOUND) {
+                    return withRemovedFromCollision(symbol, ni, c.remove(k));
+                }
+                CollisionNode rc = c.put(k, nv);
+                return new PMap<>(size + (rc.ms.length - c.ms.length) / 2, dataMap, nodeMap,
+                                  set(nodes, ni, rc), hashes, strategy);
             }
         }
 
-        @SuppressWarnings("unchecked")
-        <K, V> Optional<V> get(K k, int h) {
-            if (h != this.h)
-                return Optional.empty();
+        // Mapping does not exist
+        Object nv = r.apply(k, NOT_FOUND);
+        return nv == NOT_FOUND ? this : put(k, (V) nv, h, dShift, st);
+    }
 
-            for (int i = 0; i < ms.length; i += 2) {
-                K _k = (K) ms[i];
-                if (k.equals(_k))
-                    return Optional.of((V) ms[i + 1]);
+    // Returns a map with the mappings of this map and that map, where
+    // that map's value replaces this map's value for a key in both
+    public PMap<K, V> putAll(PMap<K, V> that) {
+        return union(that, (v, thatV) -> thatV);
+    }
+
+    // Returns a map with the mappings of this map and that map.  The value
+    // for a key in both is the result of the resolver applied to this
+    // map's value and that map's value.  The resolver is not applied to
+    // identical values, which are assumed to resolve to that value.
+    // Both tries are traversed together, layer by layer.  A node in only
+    // one of the tries is shared with the result, a node identical in both
+    // is not traversed, so the cost is proportional to the overlap of the
+    // maps rather than their size
+    public PMap<K, V> union(PMap<K, V> that, BinaryOperator<V> resolver) {
+        if ((hashes == null) != (that.hashes == null) || !Objects.equals(strategy, that.strategy)) {
+            // Nodes cannot be shared between maps that differ in hash
+            // caching or strategy, put each mapping of that map
+            PMap<K, V> m = this;
+            for (Map.Entry<K, V> e : that.entries()) {
+                Object v = m.find(e.getKey());
+                @SuppressWarnings("unchecked")
+                V _v = (V) v;
+                m = m.put(e.getKey(), v == NOT_FOUND ? e.getValue() : resolver.apply(_v, e.getValue()));
             }
+            return m;
+        }
 
-            return Optional.empty();
+        return union(that, 0, strategy, resolver);
+    }
+
+    private PMap<K, V> union(PMap<K, V> that, int dShift, HashStrategy st, BinaryOperator<V> resolver) {
+        if (this == that || that.size == 0) {
+            return this;
+        }
+        if (size == 0) {
+            return that;
         }
 
-        <K> CollisionNode remove(K k) {
-            for (int i = 0; i < ms.length; i += 2) {
-                if (k.equals(ms[i])) {
-                    Object[] n_ms = new Object[ms.length - 2];
-                    System.arraycopy(ms, 0,
-                                     n_ms, 0, i);
-                    System.arraycopy(ms, i + 2,
-                                     n_ms, i, n_ms.length - i);
-                    return new CollisionNode(h, n_ms);
+        int symbols = dataMap | nodeMap | that.dataMap | that.nodeMap;
+        // The result nodes, sized as if a mapping node in both maps has the
+        // same key, and compacted when done if not
+        int nodeSymbols = nodeMap | that.nodeMap;
+        int dataCount = Integer.bitCount(symbols & ~nodeSymbols);
+        Object[] r_nodes = new Object[dataCount * 2 + Integer.bitCount(nodeSymbols)];
+        int[] r_hashes = hashes == null ? null : new int[dataCount];
+        int r_size = 0, r_dataMap = 0, r_nodeMap = 0, di = 0, ni = 0;
+        // The result is identical to this map or that map
+        boolean isThis = true, isThat = true;
+        for (int bits = symbols; bits != 0; bits &= bits - 1) {
+            int symbol = Integer.numberOfTrailingZeros(bits);
+
+            // The result for the symbol, a mapping node or, if n is
+            // non-null, a sub-layer or collision node
+            Object k = null, v = null;
+            int h = 0;
+            Object n = null;
+            if (bitmapGet(dataMap, symbol) != 0) {
+                int i = dataIndex(dataMap, symbol);
+                Object _k = nodes[i], _v = nodes[i + 1];
+                // The hash of the key, if cached, otherwise computed only
+                // when required
+                int _h = hashes != null ? hashes[i >> 1] : 0;
+                if (bitmapGet(that.dataMap, symbol) != 0) {
+                    // Mapping node in both
+
+                    int j = dataIndex(that.dataMap, symbol);
+                    Object tk = that.nodes[j], tv = that.nodes[j + 1];
+                    int th = that.hashes != null ? that.hashes[j >> 1] : 0;
+                    if ((hashes == null || _h == th) && (_k == tk || _k.equals(tk))) {
+                        // Resolve value
+                        k = _k;
+                        h = _h;
+                        v = resolve(_v, tv, resolver);
+                        isThis &= v == _v;
+                        isThat &= k == tk && v == tv;
+                    }
+                    else {
+                        if (hashes == null) {
+                            _h = hash(_k);
+                            th = hash(tk);
+                        }
+                        n = _h == th && equalLevelHashes(_k, tk, st)
+                            ? new CollisionNode(_h, new Object[]{_k, _v, tk, tv})
+                            : mergeTwo(_k, _v, _h, tk, tv, th, dShift + PREFIX_BIT_SIZE, hashes, st);
+                        isThis = isThat = false;
+                    }
+                }
+                else if (bitmapGet(that.nodeMap, symbol) != 0) {
+                    // Mapping node in this, sub-layer or collision node in that
+
+                    Object tn = that.nodes[nodeIndex(that.nodes, that.nodeMap, symbol)];
+                    n = unionMapping(tn, _k, _v, hashAt(nodes, hashes, i >> 1),
+                                     dShift + PREFIX_BIT_SIZE, st, resolver, true, hashes);
+                    isThis = false;
+                    isThat &= n == tn;
+                }
+                else {
+                    // Mapping node in this only
+                    k = _k;
+                    v = _v;
+                    h = _h;
+                    isThat = false;
                 }
             }
-            return this;
+            else if (bitmapGet(nodeMap, symbol) != 0) {
+                Object _n = nodes[nodeIndex(nodes, nodeMap, symbol)];
+                if (bitmapGet(that.dataMap, symbol) != 0) {
+                    // Sub-layer or collision node in this, mapping node in that
+
+                    int j = dataIndex(that.dataMap, symbol);
+                    n = unionMapping(_n, that.nodes[j], that.nodes[j + 1], hashAt(that.nodes, that.hashes, j >> 1),
+                                     dShift + PREFIX_BIT_SIZE, st, resolver, false, hashes);
+                    isThis &= n == _n;
+                    isThat = false;
+                }
+                else if (bitmapGet(that.nodeMap, symbol) != 0) {
+                    // Sub-layer or collision node in both
+
+                    Object tn = that.nodes[nodeIndex(that.nodes, that.nodeMap, symbol)];
+                    n = unionNode(_n, tn, dShift + PREFIX_BIT_SIZE, st, resolver, hashes);
+                    isThis &= n == _n;
+                    isThat &= n == tn;
+                }
+                else {
+                    // Sub-layer or collision node in this only
+                    n = _n;
+                    isThat = false;
+                }
+            }
+            else {
+                isThis = false;
+                if (bitmapGet(that.dataMap, symbol) != 0) {
+                    // Mapping node in that only
+                    int j = dataIndex(that.dataMap, symbol);
+                    k = that.nodes[j];
+                    v = that.nodes[j + 1];
+                    h = that.hashes != null ? that.hashes[j >> 1] : 0;
+                }
+                else {
+                    // Sub-layer or collision node in that only
+                    n = that.nodes[nodeIndex(that.nodes, that.nodeMap, symbol)];
+                }
+            }
+
+            if (n == null) {
+                r_nodes[di * 2] = k;
+                r_nodes[di * 2 + 1] = v;
+                if (r_hashes != null) {
+                    r_hashes[di] = h;
+                }
+                di++;
+                r_dataMap |= 1 << symbol;
+                r_size++;
+            }
+            else {
+                r_nodes[r_nodes.length - 1 - ni++] = n;
+                r_nodeMap |= 1 << symbol;
+                r_size += nodeSize(n);
+            }
+        }
+
+        if (isThis) {
+            return this;
+        }
+        if (isThat) {
+            return that;
+        }
+
+        if (di < dataCount) {
+            // Mapping nodes with different keys were replaced
+            Object[] n_nodes = new Object[di * 2 + ni];
+            System.arraycopy(r_nodes, 0,
+                             n_nodes, 0, di * 2);
+            System.arraycopy(r_nodes, r_nodes.length - ni,
+                             n_nodes, di * 2, ni);
+            r_nodes = n_nodes;
+            if (r_hashes != null) {
+                r_hashes = Arrays.copyOf(r_hashes, di);
+            }
+        }
+        return new PMap<>(r_size, r_dataMap, r_nodeMap, r_nodes, r_hashes, strategy);
+    }
+
+    // Union of two sub-layer or collision nodes at the same symbol.
+    // The result caches hashes if the given hashes are non-null
+    private static <K, V> Object unionNode(Object n, Object tn, int dShift, HashStrategy st,
+                                           BinaryOperator<V> resolver, int[] hashes) {
+        if (n == tn) {
+            return n;
+        }
+
+        if (n instanceof CollisionNode && tn instanceof CollisionNode &&
+            ((CollisionNode) n).h == ((CollisionNode) tn).h &&
+            equalLevelHashes(((CollisionNode) n).ms[0], ((CollisionNode) tn).ms[0], st)) {
+            return ((CollisionNode) n).union((CollisionNode) tn, resolver);
+        }
+
+        // Union as sub-layers, where a collision node is the single node
+        // of a sub-layer
+        PMap<K, V> s = asSubLayer(n, dShift, st, hashes);
+        PMap<K, V> ts = asSubLayer(tn, dShift, st, hashes);
+        PMap<K, V> r = s.union(ts, dShift, st, resolver);
+        if (r == s) {
+            return n;
+        }
+        if (r == ts) {
+            return tn;
+        }
+        if (r.dataMap == 0 && r.nodes.length == 1 && r.nodes[0] instanceof CollisionNode) {
+            // Retain collision node count invariant
+            return r.nodes[0];
+        }
+        return r;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> PMap<K, V> asSubLayer(Object n, int dShift, HashStrategy st, int[] hashes) {
+        if (n instanceof PMap) {
+            return (PMap<K, V>) n;
+        }
+
+        return new PMap<>((CollisionNode) n, dShift, hashes == null ? null : EMPTY_HASHES, st);
+    }
+
+    // Union of a mapping node with a sub-layer or collision node at the
+    // same symbol, where the mapping node is of this map if isThis is true,
+    // otherwise of that map
+    @SuppressWarnings("unchecked")
+    private static <K, V> Object unionMapping(Object n, Object k, Object v, int h, int dShift, HashStrategy st,
+                                              BinaryOperator<V> resolver, boolean isThis, int[] hashes) {
+        Object _v = n instanceof PMap
+                    ? find((PMap<?, ?>) n, k, h, dShift, st)
+                    : ((CollisionNode) n).find(k, h);
+        if (_v != NOT_FOUND) {
+            // Resolve value
+            v = isThis ? resolve(v, _v, resolver) : resolve(_v, v, resolver);
+            if (v == _v) {
+                return n;
+            }
+        }
+
+        if (n instanceof PMap) {
+            return ((PMap<K, V>) n).put((K) k, (V) v, h, dShift, st);
+        }
+
+        CollisionNode c = (CollisionNode) n;
+        if (c.h == h && (_v != NOT_FOUND || equalLevelHashes(c.ms[0], k, st))) {
+            return c.put(k, v);
+        }
+        return new PMap<K, V>(c, dShift, hashes == null ? null : EMPTY_HASHES, st).put((K) k, (V) v, h, dShift, st);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Object resolve(Object v, Object tv, BinaryOperator<V> resolver) {
+        return v == tv ? v : resolver.apply((V) v, (V) tv);
+    }
+
+    // Returns a map with the mappings of this map that satisfy a predicate.
+    // The trie is filtered bottom-up in one pass.  A node whose mappings
+    // all satisfy the predicate is shared with the result, and each other
+    // layer with remaining mappings is copied once, to right-sized arrays
+    public PMap<K, V> filter(BiPredicate<? super K, ? super V> p) {
+        int layers = strategy == null ? MAX_LAYERS : MAX_EXTENDED_LAYERS;
+        return filter(p, new Object[layers][32], new int[layers][32], 0);
+    }
+
+    // Returns a map without the mappings whose keys are in a collection.
+    // A key is in the collection if it is equal to an element, whatever
+    // the membership of the collection, such as a sorted set with a
+    // comparator, or a set of identities.
+    // Few keys, relative to the size of this map, are removed one at a
+    // time, otherwise this map is filtered
+    public PMap<K, V> removeAll(Collection<?> ks) {
+        if (ks.size() < size >>> 5) {
+            PMap<K, V> m = this;
+            for (Object k : ks) {
+                @SuppressWarnings("unchecked")
+                K _k = (K) k;
+                m = m.remove(_k);
+            }
+            return m;
+        }
+
+        Collection<?> s = asLookup(ks);
+        return filter((k, v) -> !s.contains(k));
+    }
+
+    // Returns a map with only the mappings whose keys are equal to an
+    // element of a collection
+    public PMap<K, V> retainAll(Collection<?> ks) {
+        Collection<?> s = asLookup(ks);
+        return filter((k, v) -> s.contains(k));
+    }
+
+    public PMap<K, V> removeAll(PSet<?> ks) {
+        return filter((k, v) -> !ks.contains(k));
+    }
+
+    public PMap<K, V> retainAll(PSet<?> ks) {
+        return filter((k, v) -> ks.contains(k));
+    }
+
+    // A collection whose contains does not scan and is equals based, as
+    // is the lookup of a key in this map
+    private static Collection<?> asLookup(Collection<?> ks) {
+        return ks instanceof HashSet ? ks : new HashSet<>(ks);
+    }
+
+    // Filters a layer at a depth, where the results of filtering each
+    // sub-layer and collision node, and the hashes of any folded mapping,
+    // are held by symbol in scratch arrays per depth.
+    // The result for a node is null if no mappings remain, a single
+    // mapping, as [k, v], to be folded into this layer, or a node
+    @SuppressWarnings("unchecked")
+    private PMap<K, V> filter(BiPredicate<? super K, ? super V> p,
+                              Object[][] results, int[][] resultHashes, int depth) {
+        Object[] rs = results[depth];
+        int[] rhs = resultHashes[depth];
+
+        int r_dataMap = 0;
+        int i = 0;
+        for (int bits = dataMap; bits != 0; bits &= bits - 1, i += 2) {
+            // Mapping node
+            if (p.test((K) nodes[i], (V) nodes[i + 1])) {
+                r_dataMap |= Integer.lowestOneBit(bits);
+            }
+        }
+        boolean changed = r_dataMap != dataMap;
+
+        int r_nodeMap = 0;
+        int r_size = Integer.bitCount(r_dataMap);
+        for (int bits = nodeMap; bits != 0; bits &= bits - 1) {
+            int symbol = Integer.numberOfTrailingZeros(bits);
+            Object n = nodes[nodeIndex(nodes, nodeMap, symbol)];
+            Object r;
+            if (n instanceof PMap) {
+                // Sub-layer node
+                PMap<K, V> fs = ((PMap<K, V>) n).filter(p, results, resultHashes, depth + 1);
+                if (fs.size == 0) {
+                    r = null;
+                }
+                else if (fs.nodeMap == 0 && fs.size == 1) {
+                    // One mapping node remaining, fold into this layer
+                    r = new Object[]{fs.nodes[0], fs.nodes[1]};
+                    rhs[symbol] = fs.hashes == null ? 0 : fs.hashes[0];
+                }
+                else if (fs.dataMap == 0 && fs.nodes.length == 1 && fs.nodes[0] instanceof CollisionNode) {
+                    // One collision node remaining, fold into this layer
+                    r = fs.nodes[0];
+                }
+                else {
+                    r = fs;
+                }
+            }
+            else {
+                // Collision node
+                CollisionNode c = (CollisionNode) n;
+                r = c.filter(p);
+                rhs[symbol] = c.h;
+            }
+
+            changed |= r != n;
+            rs[symbol] = r;
+            if (r instanceof Object[]) {
+                r_dataMap |= 1 << symbol;
+                r_size++;
+            }
+            else if (r != null) {
+                r_nodeMap |= 1 << symbol;
+                r_size += nodeSize(r);
+            }
+        }
+
+        if (!changed) {
+            return this;
+        }
+        if (r_size == 0) {
+            return emptyLike();
+        }
+
+        Object[] r_nodes = new Object[Integer.bitCount(r_dataMap) * 2 + Integer.bitCount(r_nodeMap)];
+        int[] r_hashes = hashes == null ? null : new int[Integer.bitCount(r_dataMap)];
+        int di = 0, ni = r_nodes.length;
+        for (int bits = r_dataMap | r_nodeMap; bits != 0; bits &= bits - 1) {
+            int symbol = Integer.numberOfTrailingZeros(bits);
+            if (bitmapGet(dataMap, symbol) != 0) {
+                // Mapping node of this layer
+                int j = dataIndex(dataMap, symbol);
+                r_nodes[di * 2] = nodes[j];
+                r_nodes[di * 2 + 1] = nodes[j + 1];
+                if (r_hashes != null) {
+                    r_hashes[di] = hashes[j >> 1];
+                }
+                di++;
+            }
+            else if (bitmapGet(r_dataMap, symbol) != 0) {
+                // Mapping node folded from a sub-layer or collision node
+                Object[] kv = (Object[]) rs[symbol];
+                r_nodes[di * 2] = kv[0];
+                r_nodes[di * 2 + 1] = kv[1];
+                if (r_hashes != null) {
+                    r_hashes[di] = rhs[symbol];
+                }
+                di++;
+            }
+            else {
+                // Sub-layer or collision node, in reverse symbol order
+                r_nodes[--ni] = rs[symbol];
+            }
+        }
+        return new PMap<>(r_size, r_dataMap, r_nodeMap, r_nodes, r_hashes, strategy);
+    }
+
+    // The number of mappings of a sub-layer or collision node
+    static int nodeSize(Object n) {
+        return n instanceof PMap ? ((PMap<?, ?>) n).size : ((CollisionNode) n).ms.length / 2;
+    }
+
+    // Receives the differences between this map and that map
+    public interface DiffListener<K, V> {
+        // A mapping in that map only
+        void added(K k, V v);
+
+        // A mapping in this map only
+        void removed(K k, V v);
+
+        // A key in both maps whose values are not equal
+        void changed(K k, V v, V thatV);
+    }
+
+    // Reports the mappings added, removed or changed in that map relative
+    // to this map.
+    // Both tries are traversed together, layer by layer.  A node identical
+    // in both is not traversed, so for maps sharing most of their nodes,
+    // such as a map and a modified version of it, the cost is proportional
+    // to the number of differences rather than their size
+    public void diff(PMap<K, V> that, DiffListener<? super K, ? super V> listener) {
+        if (!Objects.equals(strategy, that.strategy)) {
+            // The tries of maps that differ in strategy differ in shape,
+            // look up each mapping of each map in the other map
+            for (Map.Entry<K, V> e : entries()) {
+                Object tv = that.find(e.getKey());
+                if (tv == NOT_FOUND) {
+                    listener.removed(e.getKey(), e.getValue());
+                }
+                else {
+                    @SuppressWarnings("unchecked")
+                    V _tv = (V) tv;
+                    diffValue(e.getKey(), e.getValue(), _tv, listener);
+                }
+            }
+            for (Map.Entry<K, V> e : that.entries()) {
+                if (find(e.getKey()) == NOT_FOUND) {
+                    listener.added(e.getKey(), e.getValue());
+                }
+            }
+            return;
+        }
+
+        diff(this, that, 0, strategy, listener);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void diff(PMap<?, ?> m, PMap<?, ?> tm, int dShift, HashStrategy st,
+                                    DiffListener<K, V> listener) {
+        if (m == tm) {
+            return;
+        }
+
+        int symbols = m.dataMap | m.nodeMap | tm.dataMap | tm.nodeMap;
+        for (int bits = symbols; bits != 0; bits &= bits - 1) {
+            int symbol = Integer.numberOfTrailingZeros(bits);
+            if (bitmapGet(m.dataMap, symbol) != 0) {
+                int i = dataIndex(m.dataMap, symbol);
+                K k = (K) m.nodes[i];
+                V v = (V) m.nodes[i + 1];
+                if (bitmapGet(tm.dataMap, symbol) != 0) {
+                    // Mapping node in both
+
+                    int j = dataIndex(tm.dataMap, symbol);
+                    K tk = (K) tm.nodes[j];
+                    V tv = (V) tm.nodes[j + 1];
+                    if (k.equals(tk)) {
+                        diffValue(k, v, tv, listener);
+                    }
+                    else {
+                        listener.removed(k, v);
+                        listener.added(tk, tv);
+                    }
+                }
+                else if (bitmapGet(tm.nodeMap, symbol) != 0) {
+                    // Mapping node in this, sub-layer or collision node in that
+
+                    Object tn = tm.nodes[nodeIndex(tm.nodes, tm.nodeMap, symbol)];
+                    boolean[] found = new boolean[1];
+                    forEachInNode(tn, (K tk, V tv) -> {
+                        if (k.equals(tk)) {
+                            found[0] = true;
+                            diffValue(k, v, tv, listener);
+                        }
+                        else {
+                            listener.added(tk, tv);
+                        }
+                    });
+                    if (!found[0]) {
+                        listener.removed(k, v);
+                    }
+                }
+                else {
+                    // Mapping node in this only
+                    listener.removed(k, v);
+                }
+            }
+            else if (bitmapGet(m.nodeMap, symbol) != 0) {
+                Object n = m.nodes[nodeIndex(m.nodes, m.nodeMap, symbol)];
+                if (bitmapGet(tm.dataMap, symbol) != 0) {
+                    // Sub-layer or collision node in this, mapping node in that
+
+                    int j = dataIndex(tm.dataMap, symbol);
+                    K tk = (K) tm.nodes[j];
+                    V tv = (V) tm.nodes[j + 1];
+                    boolean[] found = new boolean[1];
+                    forEachInNode(n, (K k, V v) -> {
+                        if (k.equals(tk)) {
+                            found[0] = true;
+                            diffValue(k, v, tv, listener);
+                        }
+                        else {
+                            listener.removed(k, v);
+                        }
+                    });
+                    if (!found[0]) {
+                        listener.added(tk, tv);
+                    }
+                }
+                else if (bitmapGet(tm.nodeMap, symbol) != 0) {
+                    // Sub-layer or collision node in both
+
+                    Object tn = tm.nodes[nodeIndex(tm.nodes, tm.nodeMap, symbol)];
+                    if (n == tn) {
+                        continue;
+                    }
+
+                    if (n instanceof CollisionNode && tn instanceof CollisionNode &&
+                        ((CollisionNode) n).h == ((CollisionNode) tn).h) {
+                        ((CollisionNode) n).diff((CollisionNode) tn, listener);
+                    }
+                    else {
+                        diff(asSubLayer(n, dShift + PREFIX_BIT_SIZE, st, null),
+                             asSubLayer(tn, dShift + PREFIX_BIT_SIZE, st, null),
+                             dShift + PREFIX_BIT_SIZE, st, listener);
+                    }
+                }
+                else {
+                    // Sub-layer or collision node in this only
+                    forEachInNode(n, listener::removed);
+                }
+            }
+            else {
+                if (bitmapGet(tm.dataMap, symbol) != 0) {
+                    // Mapping node in that only
+                    int j = dataIndex(tm.dataMap, symbol);
+                    listener.added((K) tm.nodes[j], (V) tm.nodes[j + 1]);
+                }
+                else {
+                    // Sub-layer or collision node in that only
+                    forEachInNode(tm.nodes[nodeIndex(tm.nodes, tm.nodeMap, symbol)], listener::added);
+                }
+            }
+        }
+    }
+
+    static <K, V> void diffValue(K k, V v, V tv, DiffListener<K, V> listener) {
+        if (v != tv && (v == null || !v.equals(tv))) {
+            listener.changed(k, v, tv);
+        }
+    }
+
+    // Performs the action for each mapping of a sub-layer or collision node
+    @SuppressWarnings("unchecked")
+    static <K, V> void forEachInNode(Object n, BiConsumer<K, V> action) {
+        if (n instanceof PMap) {
+            ((PMap<K, V>) n).forEach(action);
+        }
+        else {
+            ((CollisionNode) n).forEach(action);
+        }
+    }
+
+    // A view of the mappings as an unmodifiable collection of entries
+    public Collection<Map.Entry<K, V>> entries() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return PMap.this.iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Spliterator<Map.Entry<K, V>> spliterator() {
+                return PMap.this.spliterator();
+            }
+        };
+    }
+
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return new EntrySpliterator<>(this, 0, Integer.bitCount(dataMap | nodeMap), size);
+    }
+
+    // Iterators over the mappings, in the same order as forEach
+
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new NodeIterator<>(this) {
+            @Override
+            Map.Entry<K, V> element(Object k, Object v) {
+                @SuppressWarnings("unchecked")
+                Map.Entry<K, V> e = new AbstractMap.SimpleImmutableEntry<>((K) k, (V) v);
+                return e;
+            }
+        };
+    }
+
+    public Iterator<K> keyIterator() {
+        return new NodeIterator<>(this) {
+            @Override
+            @SuppressWarnings("unchecked")
+            K element(Object k, Object v) {
+                return (K) k;
+            }
+        };
+    }
+
+    public Iterator<V> valueIterator() {
+        return new NodeIterator<>(this) {
+            @Override
+            @SuppressWarnings("unchecked")
+            V element(Object k, Object v) {
+                return (V) v;
+            }
+        };
+    }
+
+    // A view of this map as an unmodifiable java.util.Map.
+    // The view does not copy the mappings, lookups are those of this map
+    // and the hash code is the cached hash code of this map
+    public Map<K, V> asMap() {
+        return new MapView<>(this);
+    }
+
+    // Two maps are equal if they have equal mappings.
+    // Maps with equal mappings have the same shape, so the bitmaps of
+    // each layer are compared before the mappings, and a node identical
+    // in both maps is not traversed
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PMap)) {
+            return false;
+        }
+
+        PMap<?, ?> that = (PMap<?, ?>) o;
+        if (!Objects.equals(strategy, that.strategy)) {
+            // The tries of maps that differ in strategy differ in shape,
+            // look up each mapping of this map in that map
+            if (size != that.size) {
+                return false;
+            }
+            for (Map.Entry<K, V> e : entries()) {
+                Object tv = that.find(e.getKey());
+                if (tv == NOT_FOUND || !Objects.equals(e.getValue(), tv)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return equals(this, that);
+    }
+
+    private static boolean equals(PMap<?, ?> m, PMap<?, ?> tm) {
+        if (m.size != tm.size || m.dataMap != tm.dataMap || m.nodeMap != tm.nodeMap) {
+            return false;
+        }
+        if (m.hashCode != 0 && tm.hashCode != 0 && m.hashCode != tm.hashCode) {
+            return false;
+        }
+
+        int dataEnd = Integer.bitCount(m.dataMap) * 2;
+        for (int i = 0; i < dataEnd; i += 2) {
+            // Mapping node
+            if (!m.nodes[i].equals(tm.nodes[i]) || !Objects.equals(m.nodes[i + 1], tm.nodes[i + 1])) {
+                return false;
+            }
+        }
+        for (int i = dataEnd; i < m.nodes.length; i++) {
+            Object n = m.nodes[i];
+            Object tn = tm.nodes[i];
+            if (n == tn) {
+                continue;
+            }
+
+            if (n instanceof PMap) {
+                // Sub-layer node
+                if (!(tn instanceof PMap) || !equals((PMap<?, ?>) n, (PMap<?, ?>) tn)) {
+                    return false;
+                }
+            }
+            else {
+                // Collision node
+                if (!(tn instanceof CollisionNode) || !((CollisionNode) n).equalMappings((CollisionNode) tn)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // The sum of the hash codes of the mappings, where the hash code of
+    // a mapping is the hash code of the key exclusive-or the hash code of
+    // the value, as specified by Map.hashCode.
+    // The hash code of each node is computed at most once, when first
+    // required, and a modified map computes the hash codes of only the
+    // nodes on the paths to the modifications
+    @Override
+    public int hashCode() {
+        int hc = hashCode;
+        if (hc == 0) {
+            int dataEnd = Integer.bitCount(dataMap) * 2;
+            for (int i = 0; i < dataEnd; i += 2) {
+                // Mapping node
+                hc += nodes[i].hashCode() ^ Objects.hashCode(nodes[i + 1]);
+            }
+            for (int i = dataEnd; i < nodes.length; i++) {
+                Object n = nodes[i];
+                if (n instanceof PMap) {
+                    // Sub-layer node
+                    hc += n.hashCode();
+                }
+                else {
+                    // Collision node
+                    hc += ((CollisionNode) n).mappingsHashCode();
+                }
+            }
+            hashCode = hc;
+        }
+        return hc;
+    }
+
+    // The shape of this map
+    public PMapStats stats() {
+        return new PMapStats(this, null);
+    }
+
+    // The shape of this map, and the nodes it shares with another map,
+    // such as a previous version
+    public PMapStats stats(PMap<?, ?> other) {
+        return new PMapStats(this, Objects.requireNonNull(other));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[ ");
+        int l = sb.length();
+        forEach((k, v) -> {
+            if (sb.length() > l) sb.append(", ");
+            sb.append(k).append(" -> ").append(v);
+        });
+        return sb.append(" ]").toString();
+    }
+
+    // Above this number of mappings a collision node whose keys are of the
+    // same class, implementing Comparable, keeps its mappings sorted by
+    // key, so that keys are found by binary search
+    static final int SORTED_THRESHOLD = 8;
+
+    static class CollisionNode {
+        final int h;
+        final Object[] ms;
+        // True if the mappings are sorted by key, in which case the keys
+        // are of the same class, implementing Comparable.  Keys that
+        // compare as equal but are not equal are adjacent, in any order
+        final boolean sorted;
+        // invariant: ms.length >= 4, at least two mappings
+
+        CollisionNode(int h, Object[] ms) {
+            this(h, ms, false);
+        }
+
+        CollisionNode(int h, Object[] ms, boolean sorted) {
+            this.h = h;
+            this.ms = ms;
+            this.sorted = sorted;
+        }
+
+        // Returns a collision node of mappings, in any order, whose
+        // mappings are sorted if above the threshold and the keys are
+        // sortable
+        static CollisionNode of(int h, Object[] ms) {
+            if (ms.length / 2 > SORTED_THRESHOLD && isSortable(ms)) {
+                return new CollisionNode(h, sort(ms), true);
+            }
+            return new CollisionNode(h, ms);
+        }
+
+        static boolean isSortable(Object[] ms) {
+            Class<?> c = ms[0].getClass();
+            if (!Comparable.class.isAssignableFrom(c)) {
+                return false;
+            }
+            for (int i = 2; i < ms.length; i += 2) {
+                if (ms[i].getClass() != c) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static Object[] sort(Object[] ms) {
+            Integer[] order = new Integer[ms.length / 2];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i * 2;
+            }
+            Arrays.sort(order, (a, b) -> compare(ms[a], ms[b]));
+            Object[] n_ms = new Object[ms.length];
+            for (int i = 0; i < order.length; i++) {
+                n_ms[i * 2] = ms[order[i]];
+                n_ms[i * 2 + 1] = ms[order[i] + 1];
+            }
+            return n_ms;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static int compare(Object k, Object tk) {
+            return ((Comparable) k).compareTo(tk);
+        }
+
+        // Returns the index of the key in the mappings, otherwise
+        // -(i + 1) where i is the index at which the key is inserted,
+        // which is the end of the mappings unless sorted
+        int indexOf(Object k) {
+            if (!sorted || k.getClass() != ms[0].getClass()) {
+                for (int i = 0; i < ms.length; i += 2) {
+                    if (k == ms[i] || k.equals(ms[i]))
+                        return i;
+                }
+                return -ms.length - 1;
+            }
+
+            int lo = 0, hi = ms.length / 2 - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(ms[mid * 2], k);
+                if (c < 0) {
+                    lo = mid + 1;
+                }
+                else if (c > 0) {
+                    hi = mid - 1;
+                }
+                else {
+                    // Search the keys comparing as equal
+                    for (int i = mid * 2; i >= 0 && compare(ms[i], k) == 0; i -= 2) {
+                        if (k.equals(ms[i]))
+                            return i;
+                    }
+                    for (int i = mid * 2 + 2; i < ms.length && compare(ms[i], k) == 0; i += 2) {
+                        if (k.equals(ms[i]))
+                            return i;
+                    }
+                    return -mid * 2 - 1;
+                }
+            }
+            return -lo * 2 - 1;
+        }
+
+        <K, V> CollisionNode put(K k, V v) {
+            int i = indexOf(k);
+            if (i >= 0) {
+                // Replace value
+                Object[] n_ms = ms.clone();
+                n_ms[i + 1] = v;
+                return new CollisionNode(h, n_ms, sorted);
+            }
+
+            i = -i - 1;
+            Object[] n_ms = new Object[ms.length + 2];
+            System.arraycopy(ms, 0,
+                             n_ms, 0, i);
+            n_ms[i] = k;
+            n_ms[i + 1] = v;
+            System.arraycopy(ms, i,
+                             n_ms, i + 2, ms.length - i);
+            if (sorted && k.getClass() == ms[0].getClass()) {
+                // Inserted in order
+                return new CollisionNode(h, n_ms, true);
+            }
+            return of(h, n_ms);
+        }
+
+        @SuppressWarnings("unchecked")
+        <K, V> void forEach(BiConsumer<? super K, ? super V> action) {
+            for (int i = 0; i < ms.length; i += 2) {
+                action.accept((K) ms[i], (V) ms[i + 1]);
+            }
+        }
+
+        // Returns the value of the mapping, otherwise NOT_FOUND
+        Object find(Object k, int h) {
+            if (h != this.h)
+                return NOT_FOUND;
+
+            int i = indexOf(k);
+            return i >= 0 ? ms[i + 1] : NOT_FOUND;
+        }
+
+        // Equal if the mappings are equal, in any order
+        boolean equalMappings(CollisionNode that) {
+            if (h != that.h || ms.length != that.ms.length) {
+                return false;
+            }
+
+            for (int i = 0; i < ms.length; i += 2) {
+                Object tv = that.find(ms[i], h);
+                if (tv == NOT_FOUND || !Objects.equals(ms[i + 1], tv)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int mappingsHashCode() {
+            int hc = 0;
+            for (int i = 0; i < ms.length; i += 2) {
+                hc += ms[i].hashCode() ^ Objects.hashCode(ms[i + 1]);
+            }
+            return hc;
+        }
+
+        // Returns this or that collision node if the union has the same
+        // mappings
+        <V> CollisionNode union(CollisionNode that, BinaryOperator<V> resolver) {
+            Object[] n_ms = ms;
+            int length = ms.length;
+            boolean isThat = ms.length == that.ms.length;
+            for (int j = 0; j < that.ms.length; j += 2) {
+                Object tk = that.ms[j];
+                int i = indexOf(tk);
+                if (i >= 0) {
+                    Object v = resolve(ms[i + 1], that.ms[j + 1], resolver);
+                    isThat &= tk == ms[i] && v == that.ms[j + 1];
+                    if (v != ms[i + 1]) {
+                        if (n_ms == ms) {
+                            n_ms = ms.clone();
+                        }
+                        n_ms[i + 1] = v;
+                    }
+                    continue;
+                }
+
+                isThat = false;
+                if (n_ms.length == length) {
+                    n_ms = Arrays.copyOf(n_ms, length + that.ms.length - j);
+                }
+                n_ms[length++] = tk;
+                n_ms[length++] = that.ms[j + 1];
+            }
+
+            if (n_ms == ms) {
+                return this;
+            }
+            if (isThat) {
+                return that;
+            }
+            if (length == ms.length) {
+                // Values replaced
+                return new CollisionNode(h, n_ms, sorted);
+            }
+            return of(h, length == n_ms.length ? n_ms : Arrays.copyOf(n_ms, length));
+        }
+
+        // Reports the differences to that collision node of the same hash
+        @SuppressWarnings("unchecked")
+        <K, V> void diff(CollisionNode that, DiffListener<K, V> listener) {
+            for (int i = 0; i < ms.length; i += 2) {
+                Object tv = that.find(ms[i], h);
+                if (tv == NOT_FOUND) {
+                    listener.removed((K) ms[i], (V) ms[i + 1]);
+                }
+                else {
+                    diffValue((K) ms[i], (V) ms[i + 1], (V) tv, listener);
+                }
+            }
+            for (int j = 0; j < that.ms.length; j += 2) {
+                if (find(that.ms[j], h) == NOT_FOUND) {
+                    listener.added((K) that.ms[j], (V) that.ms[j + 1]);
+                }
+            }
+        }
+
+        // Returns this collision node if all mappings satisfy the
+        // predicate, null if none do, the mapping, as [k, v], if one does,
+        // otherwise a collision node of the mappings that do
+        @SuppressWarnings("unchecked")
+        <K, V> Object filter(BiPredicate<? super K, ? super V> p) {
+            Object[] n_ms = null;
+            int length = 0;
+            for (int i = 0; i < ms.length; i += 2) {
+                if (p.test((K) ms[i], (V) ms[i + 1])) {
+                    if (n_ms != null) {
+                        n_ms[length++] = ms[i];
+                        n_ms[length++] = ms[i + 1];
+                    }
+                }
+                else if (n_ms == null) {
+                    n_ms = new Object[ms.length - 2];
+                    System.arraycopy(ms, 0,
+                                     n_ms, 0, i);
+                    length = i;
+                }
+            }
+
+            if (n_ms == null) {
+                return this;
+            }
+            if (length == 0) {
+                return null;
+            }
+            if (length == 2) {
+                return new Object[]{n_ms[0], n_ms[1]};
+            }
+            // Filtering retains the order of the mappings
+            return new CollisionNode(h, length == n_ms.length ? n_ms : Arrays.copyOf(n_ms, length), sorted);
+        }
+
+        <K> CollisionNode remove(K k) {
+            int i = indexOf(k);
+            if (i < 0) {
+                return this;
+            }
+
+            Object[] n_ms = new Object[ms.length - 2];
+            System.arraycopy(ms, 0,
+                             n_ms, 0, i);
+            System.arraycopy(ms, i + 2,
+                             n_ms, i, n_ms.length - i);
+            return new CollisionNode(h, n_ms, sorted);
+        }
+    }
+
+    // The maximum number of layers, the depth of the deepest sub-layer
+    // plus one
+    static final int MAX_LAYERS = (Integer.SIZE + PREFIX_BIT_SIZE - 1) / PREFIX_BIT_SIZE;
+
+    // The depth shift of the first layer consuming the hash at the next
+    // level of a strategy
+    static final int LEVEL_SHIFT = MAX_LAYERS * PREFIX_BIT_SIZE;
+
+    // The maximum number of layers of a map with a strategy
+    static final int MAX_EXTENDED_LAYERS = MAX_LAYERS * HashStrategy.LEVELS;
+
+    // An iterator over the mappings.
+    // Traversal is iterative, using an explicit stack of the layers
+    // being traversed and, for each layer, the index of the next node,
+    // indexed as for EntrySpliterator.  The stack is allocated once
+    // since the depth of the trie is bounded
+    abstract static class NodeIterator<T> implements Iterator<T> {
+        final PMap<?, ?>[] layers;
+        final int[] indexes;
+        // The top of the stack, -1 if traversal of the layers is complete
+        int depth;
+
+        // Collision node being traversed
+        Object[] ms;
+        int msIndex;
+
+        // The next mapping, if hasNext
+        boolean hasNext;
+        Object k;
+        Object v;
+
+        NodeIterator(PMap<?, ?> m) {
+            int maxLayers = m.strategy == null ? MAX_LAYERS : MAX_EXTENDED_LAYERS;
+            layers = new PMap<?, ?>[maxLayers];
+            indexes = new int[maxLayers];
+            layers[0] = m;
+            advance();
+        }
+
+        abstract T element(Object k, Object v);
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+
+            T t = element(k, v);
+            advance();
+            return t;
+        }
+
+        // Find the next mapping
+        void advance() {
+            hasNext = true;
+            if (ms != null) {
+                if (msIndex < ms.length) {
+                    k = ms[msIndex];
+                    v = ms[msIndex + 1];
+                    msIndex += 2;
+                    return;
+                }
+                ms = null;
+            }
+
+            while (depth >= 0) {
+                PMap<?, ?> m = layers[depth];
+                int dataCount = Integer.bitCount(m.dataMap);
+                int i = indexes[depth];
+                if (i < dataCount) {
+                    // Mapping node
+                    indexes[depth] = i + 1;
+                    k = m.nodes[i * 2];
+                    v = m.nodes[i * 2 + 1];
+                    return;
+                }
+                else if (i < m.nodes.length - dataCount) {
+                    indexes[depth] = i + 1;
+                    Object n = EntrySpliterator.node(m, i);
+                    if (n instanceof PMap) {
+                        // Sub-layer node, push
+                        depth++;
+                        layers[depth] = (PMap<?, ?>) n;
+                        indexes[depth] = 0;
+                    }
+                    else {
+                        // Collision node
+                        ms = ((CollisionNode) n).ms;
+                        k = ms[0];
+                        v = ms[1];
+                        msIndex = 2;
+                        return;
+                    }
+                }
+                else {
+                    // Layer traversed, pop
+                    layers[depth] = null;
+                    depth--;
+                }
+            }
+
+            hasNext = false;
+            k = v = null;
+        }
+    }
+
+    static final class MapView<K, V> extends AbstractMap<K, V> {
+        final PMap<K, V> m;
+
+        MapView(PMap<K, V> m) {
+            this.m = m;
+        }
+
+        @Override
+        public int size() {
+            return m.size;
+        }
+
+        @Override
+        public boolean containsKey(Object k) {
+            return m.find(k) != NOT_FOUND;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(Object k) {
+            Object v = m.find(k);
+            return v == NOT_FOUND ? null : (V) v;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V getOrDefault(Object k, V defaultValue) {
+            Object v = m.find(k);
+            return v == NOT_FOUND ? defaultValue : (V) v;
+        }
+
+        @Override
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            m.forEach(action);
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return m.iterator();
+                }
+
+                @Override
+                public int size() {
+                    return m.size;
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    if (!(o instanceof Map.Entry)) {
+                        return false;
+                    }
+                    Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                    Object v = m.find(e.getKey());
+                    return v != NOT_FOUND && Objects.equals(v, e.getValue());
+                }
+
+                @Override
+                public Spliterator<Entry<K, V>> spliterator() {
+                    return m.spliterator();
+                }
+            };
+        }
+
+        @Override
+        public Set<K> keySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<K> iterator() {
+                    return m.keyIterator();
+                }
+
+                @Override
+                public int size() {
+                    return m.size;
+                }
+
+                @Override
+                public boolean contains(Object k) {
+                    return containsKey(k);
+                }
+            };
+        }
+
+        @Override
+        public Collection<V> values() {
+            return new AbstractCollection<>() {
+                @Override
+                public Iterator<V> iterator() {
+                    return m.valueIterator();
+                }
+
+                @Override
+                public int size() {
+                    return m.size;
+                }
+            };
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof MapView) {
+                return m.equals(((MapView<?, ?>) o).m);
+            }
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return m.hashCode();
+        }
+    }
+
+    // A spliterator over a range of nodes at one level.
+    // Mapping nodes are ordered before sub-layer and collision nodes.
+    // Splitting divides the range in two, and when one node remains that
+    // is a sub-layer node, descends into and splits the sub-layer.  Each
+    // node, mapping node or otherwise, knows its size so the size of
+    // a split is known exactly.
+    static final class EntrySpliterator<K, V> implements Spliterator<Map.Entry<K, V>> {
+        PMap<K, V> m;
+        // Number of mapping nodes of m
+        int dataCount;
+        // Index of the next node
+        int index;
+        // One past the index of the last node
+        int fence;
+        // Exact number of remaining mappings
+        long est;
+
+        // Sub-layer node being traversed by tryAdvance
+        Spliterator<Map.Entry<K, V>> sub;
+        // Collision node being traversed by tryAdvance
+        Object[] ms;
+        int msIndex;
+
+        EntrySpliterator(PMap<K, V> m, int index, int fence, long est) {
+            this.m = m;
+            this.dataCount = Integer.bitCount(m.dataMap);
+            this.index = index;
+            this.fence = fence;
+            this.est = est;
+        }
+
+        // The sub-layer or collision node at index i, i >= dataCount
+        static Object node(PMap<?, ?> m, int i) {
+            return m.nodes[m.nodes.length - 1 - (i - Integer.bitCount(m.dataMap))];
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            if (sub != null || ms != null) {
+                // Traversal of a node is in progress
+                return null;
+            }
+
+            // Descend into a remaining sub-layer node
+            while (fence - index == 1 && index >= dataCount && node(m, index) instanceof PMap) {
+                @SuppressWarnings("unchecked")
+                PMap<K, V> s = (PMap<K, V>) node(m, index);
+                m = s;
+                dataCount = Integer.bitCount(s.dataMap);
+                index = 0;
+                fence = Integer.bitCount(s.dataMap | s.nodeMap);
+            }
+
+            int lo = index;
+            int mid = (lo + fence) >>> 1;
+            if (mid == lo) {
+                // One mapping or collision node remaining
+                return null;
+            }
+
+            long s = sizeOf(m, lo, mid);
+            index = mid;
+            est -= s;
+            return new EntrySpliterator<>(m, lo, mid, s);
+        }
+
+        static long sizeOf(PMap<?, ?> m, int from, int to) {
+            int dataCount = Integer.bitCount(m.dataMap);
+            long s = Math.max(0, Math.min(to, dataCount) - from);
+            for (int i = Math.max(from, dataCount); i < to; i++) {
+                Object n = node(m, i);
+                if (n instanceof PMap) {
+                    s += ((PMap<?, ?>) n).size;
+                }
+                else {
+                    s += ((CollisionNode) n).ms.length / 2;
+                }
+            }
+            return s;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            while (true) {
+                if (sub != null) {
+                    if (sub.tryAdvance(action)) {
+                        est--;
+                        return true;
+                    }
+                    sub = null;
+                }
+                if (ms != null) {
+                    if (msIndex < ms.length) {
+                        int i = msIndex;
+                        msIndex += 2;
+                        est--;
+                        action.accept(entry(ms[i], ms[i + 1]));
+                        return true;
+                    }
+                    ms = null;
+                }
+                if (index >= fence) {
+                    return false;
+                }
+
+                int i = index++;
+                if (i < dataCount) {
+                    // Mapping node
+                    est--;
+                    action.accept(entry(m.nodes[i * 2], m.nodes[i * 2 + 1]));
+                    return true;
+                }
+
+                Object n = node(m, i);
+                if (n instanceof PMap) {
+                    // Sub-layer node
+                    @SuppressWarnings("unchecked")
+                    PMap<K, V> s = (PMap<K, V>) n;
+                    sub = s.spliterator();
+                }
+                else {
+                    // Collision node
+                    ms = ((CollisionNode) n).ms;
+                    msIndex = 0;
+                }
+            }
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+            if (sub != null) {
+                sub.forEachRemaining(action);
+                sub = null;
+            }
+            if (ms != null) {
+                for (int i = msIndex; i < ms.length; i += 2) {
+                    action.accept(entry(ms[i], ms[i + 1]));
+                }
+                ms = null;
+            }
+            for (int i = index; i < fence; i++) {
+                if (i < dataCount) {
+                    // Mapping node
+                    action.accept(entry(m.nodes[i * 2], m.nodes[i * 2 + 1]));
+                }
+                else {
+                    forEachEntry(node(m, i), action);
+                }
+            }
+            index = fence;
+            est = 0;
+        }
+
+        void forEachEntry(Object n, Consumer<? super Map.Entry<K, V>> action) {
+            if (n instanceof PMap) {
+                // Sub-layer node
+                PMap<?, ?> s = (PMap<?, ?>) n;
+                int dataEnd = Integer.bitCount(s.dataMap) * 2;
+                for (int i = 0; i < dataEnd; i += 2) {
+                    action.accept(entry(s.nodes[i], s.nodes[i + 1]));
+                }
+                for (int i = s.nodes.length - 1; i >= dataEnd; i--) {
+                    forEachEntry(s.nodes[i], action);
+                }
+            }
+            else {
+                // Collision node
+                Object[] c_ms = ((CollisionNode) n).ms;
+                for (int j = 0; j < c_ms.length; j += 2) {
+                    action.accept(entry(c_ms[j], c_ms[j + 1]));
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Map.Entry<K, V> entry(Object k, Object v) {
+            return new AbstractMap.SimpleImmutableEntry<>((K) k, (V) v);
+        }
+
+        @Override
+        public long estimateSize() {
+            return est;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.SIZED | Spliterator.SUBSIZED |
+                   Spliterator.DISTINCT | Spliterator.NONNULL |
+                   Spliterator.IMMUTABLE;
         }
     }
 }
@@ -24,178 +24,477 @@
  */
 package per;
 
-import sun.misc.Unsafe;
-
-import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
 
 // A builder of a PMap.
 // Building is thread confined.
 // Freezing transitions from mutable to immutable state and invalidates
 // the builder.
+// A builder may start from an existing PMap, in which case the nodes of
+// the PMap are shared and a node is copied to a mutable node at most
+// once, when first modified.  Thereafter the mutable node, owned by the
+// builder, is modified in place.
 public class PMapBuilder<K, V> {
-    static Unsafe U = getUnsafe();
-
     final Thread t;
+    // The hash strategy of the map the builder started from, if any
+    final HashStrategy strategy;
     MutableHAMT<K, V> m;
 
     PMapBuilder() {
         t = Thread.currentThread();
+        strategy = null;
         m = new MutableHAMT<>();
     }
 
-    static Unsafe getUnsafe() {
-        try {
-            Field uf = Unsafe.class.getDeclaredField("theUnsafe");
-            uf.setAccessible(true);
-            return (sun.misc.Unsafe) uf.get(null);
-        }
-        catch (Exception e) {
-            throw new InternalError(e);
-        }
+    PMapBuilder(PMap<K, V> base) {
+        t = Thread.currentThread();
+        strategy = base.strategy;
+        m = new MutableHAMT<>(base);
     }
 
-    // This method uses Unsafe to monkey patch the class header
-    // of MutableHAMT to PMap.  In effect "freezing" the nodes.  This
-    // works because MutableHAMT and PMap have the same field layout.
+    // Freezes the nodes by wrapping the fields of each mutable node in a
+    // PMap.  The node arrays are not copied but transfer to the PMap,
+    // which is safe because the builder is invalidated and never again
+    // modifies them, so freezing is O(1) per mutable node.
+    // Sub-layer nodes that are PMap are shared with the PMap the builder
+    // started from and are already frozen.
     static <K, V> PMap<K, V> toPMap(MutableHAMT<K, V> m) {
-        for (int i = 0; i < m.nodes.length; i += 2) {
-            @SuppressWarnings("unchecked")
-            K k = (K) m.nodes[i];
-            if (k == PMap.SUB_LAYER_NODE) {
-                // Sub-layer node
+        return toPMap(m, null);
+    }
+
+    // Freezes the nodes, where the root layer records a hash strategy
+    static <K, V> PMap<K, V> toPMap(MutableHAMT<K, V> m, HashStrategy strategy) {
+        int dataEnd = Integer.bitCount(m.dataMap) * 2;
+        for (int i = dataEnd; i < m.nodes.length; i++) {
+            if (m.nodes[i] instanceof MutableHAMT) {
+                // Mutable sub-layer node
 
                 @SuppressWarnings("unchecked")
-                MutableHAMT<K, V> sm = (MutableHAMT<K, V>) m.nodes[i + 1];
-                m.nodes[i + 1] = toPMap(sm);
-            }
-            else if (k == PMap.COLLISION_NODE) {
-                throw new UnsupportedOperationException("Collisions not supported");
+                MutableHAMT<K, V> sm = (MutableHAMT<K, V>) m.nodes[i];
+                m.nodes[i] = toPMap(sm);
             }
         }
 
-        // Monkey patch the header of m to freeze it
-        Object o = m;
-        m = null;
-        // @@@ This should be a method on Unsafe
-        //     With a corresponding method that validates the two classes
-        //     are compatible with respect to the field layout
-        int classHeader_PMap = U.getInt(PMap.EMPTY_PMAP, 8L);
-        U.putOrderedInt(o, 8L, classHeader_PMap);
-
-        @SuppressWarnings("unchecked")
-        PMap<K, V> pm = (PMap<K, V>) o;
-        return pm;
+        // The final fields of PMap ensure the nodes are safely published
+        return new PMap<>(m.size, m.dataMap, m.nodeMap, m.nodes, m.hashes, strategy);
     }
 
-    public PMapBuilder<K, V> put(K k, V v) {
-        // Guard a put, only if the builder has not been built and
-        // the current thread is the same as the thread that created
-        // the builder
+    // Guard a modification, only if the builder has not been built and
+    // the current thread is the same as the thread that created
+    // the builder
+    void checkState() {
         if (m == null || t != Thread.currentThread())
             throw new IllegalStateException();
+    }
+
+    public PMapBuilder<K, V> put(K k, V v) {
+        checkState();
+
+        m.put(k, v, hash(k), 0, strategy);
+        return this;
+    }
 
-        m.put(k, v, PMap.hash(k), 0);
+    public PMapBuilder<K, V> remove(K k) {
+        checkState();
+
+        m.remove(k, hash(k), 0, strategy);
         return this;
     }
 
-    PMap<K, V> build() {
+    int hash(Object k) {
+        return strategy == null ? PMap.hash(k) : strategy.hash(k);
+    }
+
+    public PMap<K, V> build() {
+        checkState();
+
         MutableHAMT<K, V> _m = m;
         // Transition the builder to the built state
         clear();
-        return toPMap(_m);
+        return toPMap(_m, strategy);
+    }
+
+    // Builds a map whose nodes are interned in a pool, sharing the nodes
+    // of equal sub-tries of maps previously interned
+    public PMap<K, V> build(PMapInterner pool) {
+        return pool.intern(build());
     }
 
     void clear() {
         m = null;
     }
 
+    // Builds a PMap in parallel from a collection of mappings.
+    // The mappings are partitioned by the symbol at depth 0 of the hash
+    // of the key, and a sub-layer is then built, and frozen, for each
+    // symbol, independently and in parallel.  Finally the root layer is
+    // assembled from the sub-layers.
+    // If there are mappings with equal keys then the last one, in the
+    // encounter order of the collection, is retained
+    static <K, V> PMap<K, V> buildParallel(Collection<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        // Partition, each leaf task partitioning a split of the mappings,
+        // retaining the partitions in encounter order
+        List<Partitions> ps = entries.parallelStream().collect(Collector.of(
+                () -> new ArrayList<>(List.of(new Partitions())),
+                (l, e) -> l.get(0).add(e.getKey(), e.getValue()),
+                (l, r) -> {
+                    l.addAll(r);
+                    return l;
+                }));
+
+        // Build the sub-layers
+        Object[] subLayers = IntStream.range(0, 1 << PMap.PREFIX_BIT_SIZE).parallel().
+                mapToObj(symbol -> buildSubLayer(ps, symbol)).
+                toArray();
+
+        // Assemble the root layer, mapping nodes first in symbol order then
+        // sub-layer and collision nodes in reverse symbol order
+        int size = 0, dataMap = 0, nodeMap = 0;
+        for (int symbol = 0; symbol < subLayers.length; symbol++) {
+            Object s = subLayers[symbol];
+            if (s instanceof Object[]) {
+                size++;
+                dataMap = PMap.bitmapSet(dataMap, symbol);
+            }
+            else if (s != null) {
+                size += PMap.nodeSize(s);
+                nodeMap = PMap.bitmapSet(nodeMap, symbol);
+            }
+        }
+        if (size == 0) {
+            return PMap.empty();
+        }
+
+        Object[] nodes = new Object[Integer.bitCount(dataMap) * 2 + Integer.bitCount(nodeMap)];
+        int di = 0, ni = nodes.length;
+        for (Object s : subLayers) {
+            if (s instanceof Object[]) {
+                Object[] kv = (Object[]) s;
+                nodes[di++] = kv[0];
+                nodes[di++] = kv[1];
+            }
+            else if (s != null) {
+                nodes[--ni] = s;
+            }
+        }
+        return new PMap<>(size, dataMap, nodeMap, nodes, null);
+    }
+
+    // Builds and freezes the sub-layer at depth 1 of the mappings of a symbol,
+    // returning null if there are no mappings, the mapping as [k, v] if
+    // there is one mapping, a collision node if all mappings collide,
+    // otherwise a sub-layer node
+    static <K, V> Object buildSubLayer(List<Partitions> ps, int symbol) {
+        MutableHAMT<K, V> m = new MutableHAMT<>();
+        for (Partitions p : ps) {
+            Object[] kvs = p.kvs[symbol];
+            int[] hs = p.hs[symbol];
+            for (int i = 0; i < p.counts[symbol]; i++) {
+                @SuppressWarnings("unchecked")
+                K k = (K) kvs[i * 2];
+                @SuppressWarnings("unchecked")
+                V v = (V) kvs[i * 2 + 1];
+                m.put(k, v, hs[i], PMap.PREFIX_BIT_SIZE, null);
+            }
+        }
+
+        if (m.size == 0) {
+            return null;
+        }
+        if (m.nodeMap == 0 && m.size == 1) {
+            // One mapping node, placed in the root layer
+            return new Object[]{m.nodes[0], m.nodes[1]};
+        }
+        if (m.dataMap == 0 && m.nodes.length == 1 && m.nodes[0] instanceof PMap.CollisionNode) {
+            // One collision node, placed in the root layer
+            return m.nodes[0];
+        }
+        return toPMap(m);
+    }
+
+    // Mappings and the hashes of their keys, partitioned by the symbol
+    // at depth 0 of the hash
+    static final class Partitions {
+        // [k, v, ..., k, v] for each symbol
+        final Object[][] kvs = new Object[1 << PMap.PREFIX_BIT_SIZE][];
+        // [h, ..., h] for each symbol
+        final int[][] hs = new int[1 << PMap.PREFIX_BIT_SIZE][];
+        final int[] counts = new int[1 << PMap.PREFIX_BIT_SIZE];
+
+        void add(Object k, Object v) {
+            int h = PMap.hash(k);
+            int symbol = PMap.symbolAtDepth(h, 0);
+            int c = counts[symbol];
+            if (hs[symbol] == null) {
+                kvs[symbol] = new Object[16];
+                hs[symbol] = new int[8];
+            }
+            else if (c == hs[symbol].length) {
+                kvs[symbol] = Arrays.copyOf(kvs[symbol], c * 4);
+                hs[symbol] = Arrays.copyOf(hs[symbol], c * 2);
+            }
+            kvs[symbol][c * 2] = k;
+            kvs[symbol][c * 2 + 1] = v;
+            hs[symbol][c] = h;
+            counts[symbol] = c + 1;
+        }
+    }
+
     static final class MutableHAMT<K, V> {
         int size;
-        int bitmap;
+        int dataMap;
+        int nodeMap;
         Object[] nodes;
+        // The array is never modified in place, and so may be shared
+        // with a frozen node
+        int[] hashes;
 
         MutableHAMT() {
-            size = 0;
-            bitmap = 0;
-            nodes = PMap.EMPTY_NODES;
+            this(0, 0, 0, PMap.EMPTY_NODES, null);
+        }
+
+        // Copy a frozen node so that it may be modified
+        MutableHAMT(PMap<K, V> m) {
+            this(m.size, m.dataMap, m.nodeMap, m.nodes.clone(), m.hashes);
         }
 
-        MutableHAMT(K k, V v, int levelShift) {
-            this(1, 1 << PMap.symbolAtDepth(PMap.hash(k), levelShift), new Object[]{k, v});
+        MutableHAMT(PMap.CollisionNode c, int levelShift, int[] hashes, HashStrategy st) {
+            this(c.ms.length / 2, 0, 1 << PMap.symbolAt(c.ms[0], c.h, levelShift, st), new Object[]{c},
+                 hashes == null ? null : PMap.EMPTY_HASHES);
         }
 
-        MutableHAMT(int size, int bitmap, Object[] nodes) {
+        MutableHAMT(int size, int dataMap, int nodeMap, Object[] nodes, int[] hashes) {
             this.size = size;
-            this.bitmap = bitmap;
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
             this.nodes = nodes;
+            this.hashes = hashes;
         }
 
-        void put(K k, V v, int h, int dShift) {
-            int symbol = PMap.symbolAtDepth(h, dShift);
-
-            int bit = PMap.bitmapGet(bitmap, symbol);
+        // Create a sub-layer node, at a depth, from two mappings with
+        // different hashes, at some level of the strategy.  The node caches
+        // hashes if the given hashes are non-null
+        static <K, V> MutableHAMT<K, V> mergeTwo(Object k0, Object v0, int h0,
+                                                 Object k1, Object v1, int h1,
+                                                 int dShift, int[] hashes, HashStrategy st) {
+            int s0 = PMap.symbolAt(k0, h0, dShift, st);
+            int s1 = PMap.symbolAt(k1, h1, dShift, st);
+            if (s0 != s1) {
+                if (s0 < s1) {
+                    return new MutableHAMT<>(2, (1 << s0) | (1 << s1), 0,
+                                             new Object[]{k0, v0, k1, v1}, PMap.twoHashes(hashes, h0, h1));
+                }
+                else {
+                    return new MutableHAMT<>(2, (1 << s0) | (1 << s1), 0,
+                                             new Object[]{k1, v1, k0, v0}, PMap.twoHashes(hashes, h1, h0));
+                }
+            }
+            else {
+                // Prefix conflict at this depth
+                MutableHAMT<K, V> s = mergeTwo(k0, v0, h0, k1, v1, h1, dShift + PMap.PREFIX_BIT_SIZE, hashes, st);
+                return new MutableHAMT<>(2, 0, 1 << s0, new Object[]{s},
+                                         hashes == null ? null : PMap.EMPTY_HASHES);
+            }
+        }
 
-            if (bit == 0) {
-                // Mapping node is free
+        // Get the sub-layer node at index i of the nodes, copying it
+        // if it is frozen
+        @SuppressWarnings("unchecked")
+        MutableHAMT<K, V> mutableSubLayer(int i) {
+            Object s = nodes[i];
+            if (s instanceof MutableHAMT) {
+                return (MutableHAMT<K, V>) s;
+            }
 
-                int levelCount = Integer.bitCount(bitmap);
+            MutableHAMT<K, V> ms = new MutableHAMT<>((PMap<K, V>) s);
+            nodes[i] = ms;
+            return ms;
+        }
 
-                // Create a new node array with an increased size of one
-                Object[] n_nodes = Arrays.copyOf(nodes, levelCount * 2 + 2);
+        // Returns true if a new mapping was added, otherwise false if
+        // the value of an existing mapping was replaced
+        boolean put(K k, V v, int h, int dShift, HashStrategy st) {
+            int symbol = PMap.symbolAt(k, h, dShift, st);
 
-                // Count the number of nodes to the left of the new mapping node
-                int nodeCount = PMap.bitmapCountFrom(bitmap, symbol);
-                // Expand for the new mapping node
-                System.arraycopy(n_nodes, nodeCount * 2,
-                                 n_nodes, nodeCount * 2 + 2, (levelCount - nodeCount) * 2);
+            if (PMap.bitmapGet(dataMap, symbol) != 0) {
+                // Prefix conflict with existing mapping node
 
-                // Set the bit of the mapping node
-                int n_bitmap = bitmap | (1 << symbol);
+                int i = PMap.dataIndex(dataMap, symbol);
+                Object _k = nodes[i];
+                int _h = hashes != null ? hashes[i >> 1] : Integer.MIN_VALUE;
+                if ((hashes == null || _h == h) && _k.equals(k)) {
+                    // Replace value
+                    nodes[i + 1] = v;
+                    return false;
+                }
 
-                // Set the mapping node
-                n_nodes[nodeCount * 2] = k;
-                n_nodes[nodeCount * 2 + 1] = v;
+                Object _v = nodes[i + 1];
+                if (hashes == null) {
+                    _h = PMap.hash(_k);
+                }
+                Object n;
+                if (h == _h && PMap.equalLevelHashes(_k, k, st)) {
+                    // Replace mapping node with collision node
+                    n = new PMap.CollisionNode(h, new Object[]{_k, _v, k, v});
+                }
+                else {
+                    // Replace mapping node with a sub-layer node
+                    n = mergeTwo(_k, _v, _h, k, v, h, dShift + PMap.PREFIX_BIT_SIZE, hashes, st);
+                }
 
+                int ni = nodes.length - 2 - PMap.bitmapCountFrom(nodeMap, symbol);
                 size++;
-                bitmap = n_bitmap;
-                nodes = n_nodes;
+                dataMap = PMap.bitmapClear(dataMap, symbol);
+                nodeMap = PMap.bitmapSet(nodeMap, symbol);
+                nodes = PMap.migrateDataToNode(nodes, i, ni, n);
+                hashes = PMap.removeHash(hashes, i >> 1);
+                return true;
             }
+            else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+                int ni = PMap.nodeIndex(nodes, nodeMap, symbol);
+                Object n = nodes[ni];
+                if (n instanceof PMap.CollisionNode) {
+                    // Collision node
+
+                    PMap.CollisionNode c = (PMap.CollisionNode) n;
+                    if (h == c.h && (st == null || c.indexOf(k) >= 0 || PMap.equalLevelHashes(c.ms[0], k, st))) {
+                        // Collision with existing keys in collision node
+                        PMap.CollisionNode r = c.put(k, v);
+                        nodes[ni] = r;
+                        if (r.ms.length > c.ms.length) {
+                            size++;
+                            return true;
+                        }
+                        return false;
+                    }
+                    else {
+                        // Replace collision node with a sub-layer node
+                        MutableHAMT<K, V> subNode = new MutableHAMT<>(c, dShift + PMap.PREFIX_BIT_SIZE, hashes, st);
+                        subNode.put(k, v, h, dShift + PMap.PREFIX_BIT_SIZE, st);
+                        nodes[ni] = subNode;
+                        size++;
+                        return true;
+                    }
+                }
 
-            int nodeCount = PMap.bitmapCountFrom(bitmap, symbol);
-            Object _k = nodes[nodeCount * 2];
-            if (_k == PMap.SUB_LAYER_NODE) {
                 // Sub-layer node
 
-                @SuppressWarnings("unchecked")
-                MutableHAMT<K, V> s = (MutableHAMT<K, V>) nodes[nodeCount * 2 + 1];
-                s.put(k, v, h, dShift + PMap.PREFIX_BIT_SIZE);
-            }
-            else if (_k == PMap.COLLISION_NODE) {
-                throw new InternalError("Should not be here");
+                MutableHAMT<K, V> s = mutableSubLayer(ni);
+                if (s.put(k, v, h, dShift + PMap.PREFIX_BIT_SIZE, st)) {
+                    size++;
+                    return true;
+                }
+                return false;
             }
             else {
+                // Mapping node is free
+
+                int i = PMap.dataIndex(dataMap, symbol);
+                size++;
+                nodes = PMap.insertData(nodes, i, k, v);
+                hashes = PMap.insertHash(hashes, i >> 1, h);
+                dataMap = PMap.bitmapSet(dataMap, symbol);
+                return true;
+            }
+        }
+
+        // Returns true if the mapping was removed, otherwise false if
+        // no mapping exists
+        boolean remove(K k, int h, int dShift, HashStrategy st) {
+            int symbol = PMap.symbolAt(k, h, dShift, st);
+
+            if (PMap.bitmapGet(dataMap, symbol) != 0) {
                 // Prefix conflict with existing mapping node
-                // @@@ can compare hash codes first if cached
 
-                if (_k.equals(k)) {
-                    // Replace value
-                    nodes[nodeCount * 2 + 1] = v;
-                    return;
+                int i = PMap.dataIndex(dataMap, symbol);
+                if ((hashes != null && hashes[i >> 1] != h) || !nodes[i].equals(k)) {
+                    // Mapping does not exist
+
+                    return false;
                 }
 
-                Object _v = nodes[nodeCount * 2 + 1];
-                if (h == PMap.hash(_k)) {
-                    throw new UnsupportedOperationException("Collisions not supported");
+                // Remove mapping
+
+                size--;
+                dataMap = PMap.bitmapClear(dataMap, symbol);
+                nodes = size == 0 ? PMap.EMPTY_NODES : PMap.removeData(nodes, i);
+                hashes = PMap.removeHash(hashes, i >> 1);
+                return true;
+            }
+            else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+                int ni = PMap.nodeIndex(nodes, nodeMap, symbol);
+                Object n = nodes[ni];
+                if (n instanceof PMap.CollisionNode) {
+                    // Collision node
+
+                    PMap.CollisionNode c = (PMap.CollisionNode) n;
+
+                    if (h != c.h) {
+                        // Mapping does not exist
+
+                        return false;
+                    }
+
+                    PMap.CollisionNode r = c.remove(k);
+                    if (r == c) {
+                        // Mapping does not exist
+
+                        return false;
+                    }
+
+                    size--;
+                    if (r.ms.length == 2) {
+                        // Fold into node array to retain collision node count invariant
+                        int i = PMap.dataIndex(dataMap, symbol);
+                        nodes = PMap.migrateNodeToData(nodes, ni, i, r.ms[0], r.ms[1]);
+                        hashes = PMap.insertHash(hashes, i >> 1, c.h);
+                        dataMap = PMap.bitmapSet(dataMap, symbol);
+                        nodeMap = PMap.bitmapClear(nodeMap, symbol);
+                    }
+                    else {
+                        nodes[ni] = r;
+                    }
+                    return true;
                 }
-                else {
-                    // Replace mapping node with a sub-layer node
-                    nodes[nodeCount * 2] = PMap.SUB_LAYER_NODE;
-                    @SuppressWarnings("unchecked")
-                    MutableHAMT<K, V> subNode = new MutableHAMT<>((K) _k, (V) _v, dShift + PMap.PREFIX_BIT_SIZE);
-                    nodes[nodeCount * 2 + 1] = subNode;
-                    subNode.put(k, v, h, dShift + PMap.PREFIX_BIT_SIZE);
+
+                // Sub-layer node
+
+                // @@@ The sub-layer is copied, if frozen, even if no
+                //     mapping exists
+                MutableHAMT<K, V> s = mutableSubLayer(ni);
+                if (!s.remove(k, h, dShift + PMap.PREFIX_BIT_SIZE, st)) {
+                    // No mapping exists
+
+                    return false;
                 }
+
+                size--;
+                if (s.nodeMap == 0 && s.size == 1) {
+                    // One mapping node remaining in child, fold into parent
+                    // to retain mapping node count invariant
+                    int i = PMap.dataIndex(dataMap, symbol);
+                    nodes = PMap.migrateNodeToData(nodes, ni, i, s.nodes[0], s.nodes[1]);
+                    hashes = PMap.insertHash(hashes, i >> 1, hashes == null ? 0 : s.hashes[0]);
+                    dataMap = PMap.bitmapSet(dataMap, symbol);
+                    nodeMap = PMap.bitmapClear(nodeMap, symbol);
+                }
+                else if (s.dataMap == 0 && s.nodes.length == 1 && s.nodes[0] instanceof PMap.CollisionNode) {
+                    // One collision node remaining in child, fold into parent
+                    // to retain collision node count invariant
+                    nodes[ni] = s.nodes[0];
+                }
+                return true;
+            }
+            else {
+                // Mapping does not exist
+
+                return false;
             }
         }
     }
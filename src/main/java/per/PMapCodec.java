@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// A binary encoding of a PMap that preserves the shape of the trie.
+// Each layer is written as its bitmaps, mapping nodes, and sub-layer and
+// collision nodes, depth first, in the order of the node array.
+// Reading a map allocates each node array once, at its final size, and
+// neither hashes keys nor puts mappings.
+//
+//   map:       magic, version, hash caching, hash strategy, size, root layer
+//   layer:     dataMap, nodeMap, mapping node for each bit of dataMap,
+//              node for each bit of nodeMap in reverse symbol order
+//   mapping:   [hash,] key, value
+//   node:      SUB_LAYER, layer
+//            | COLLISION, hash, count, key, value for each mapping
+// The hash of a mapping is present only if the map caches hashes.
+// The shape of the trie, and any cached hashes, are restored as written,
+// so the hash code of a key, or its hash by the strategy, must be stable
+// across runtimes: a key read must have the same hash as the key written,
+// otherwise lookups of the map read silently miss.  Keys whose hash code
+// is the identity hash code, such as enums, or that of an object holding
+// such keys, are not stable.  byte[] keys have no stable hash and are
+// rejected.
+public final class PMapCodec<K, V> {
+    static final int MAGIC = 0x504D4150; // "PMAP"
+
+    static final int VERSION = 1;
+
+    static final byte SUB_LAYER = 0;
+
+    static final byte COLLISION = 1;
+
+    // Writes and reads a key or value
+    public interface Serializer<T> {
+        void write(DataOutput out, T t) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    // A string of any length, as a length and UTF-8 bytes
+    public static final Serializer<String> STRING = new Serializer<>() {
+        @Override
+        public void write(DataOutput out, String s) throws IOException {
+            BYTES.write(out, s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return new String(BYTES.read(in), StandardCharsets.UTF_8);
+        }
+    };
+
+    public static final Serializer<Integer> INT = new Serializer<>() {
+        @Override
+        public void write(DataOutput out, Integer i) throws IOException {
+            out.writeInt(i);
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+    public static final Serializer<Long> LONG = new Serializer<>() {
+        @Override
+        public void write(DataOutput out, Long l) throws IOException {
+            out.writeLong(l);
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    public static final Serializer<byte[]> BYTES = new Serializer<>() {
+        @Override
+        public void write(DataOutput out, byte[] bs) throws IOException {
+            out.writeInt(bs.length);
+            out.write(bs);
+        }
+
+        @Override
+        public byte[] read(DataInput in) throws IOException {
+            byte[] bs = new byte[in.readInt()];
+            in.readFully(bs);
+            return bs;
+        }
+    };
+
+    // The size of the buffer between a stream and a channel
+    static final int BUFFER_SIZE = 1 << 16;
+
+    final Serializer<K> keys;
+    final Serializer<V> values;
+
+    public PMapCodec(Serializer<K> keys, Serializer<V> values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    // Writes a map to a channel.  The channel is not closed
+    public void write(PMap<K, V> m, WritableByteChannel ch) throws IOException {
+        checkKeys();
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(ch), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeBoolean(m.hashes != null);
+        out.writeBoolean(m.strategy != null);
+        out.writeInt(m.size);
+        writeLayer(out, m);
+        out.flush();
+    }
+
+    void checkKeys() {
+        if (keys == BYTES) {
+            throw new IllegalArgumentException("byte[] keys have no stable hash");
+        }
+    }
+
+    void writeLayer(DataOutput out, PMap<?, ?> m) throws IOException {
+        out.writeInt(m.dataMap);
+        out.writeInt(m.nodeMap);
+        int dataEnd = Integer.bitCount(m.dataMap) * 2;
+        for (int i = 0; i < dataEnd; i += 2) {
+            // Mapping node
+            if (m.hashes != null) {
+                out.writeInt(m.hashes[i >> 1]);
+            }
+            writeMapping(out, m.nodes[i], m.nodes[i + 1]);
+        }
+        for (int i = dataEnd; i < m.nodes.length; i++) {
+            Object n = m.nodes[i];
+            if (n instanceof PMap) {
+                // Sub-layer node
+                out.writeByte(SUB_LAYER);
+                writeLayer(out, (PMap<?, ?>) n);
+            }
+            else {
+                // Collision node
+                PMap.CollisionNode c = (PMap.CollisionNode) n;
+                out.writeByte(COLLISION);
+                out.writeInt(c.h);
+                out.writeInt(c.ms.length / 2);
+                for (int j = 0; j < c.ms.length; j += 2) {
+                    writeMapping(out, c.ms[j], c.ms[j + 1]);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void writeMapping(DataOutput out, Object k, Object v) throws IOException {
+        keys.write(out, (K) k);
+        values.write(out, (V) v);
+    }
+
+    // Reads a map from a channel.  The channel is not closed, but may be
+    // read beyond the end of the map
+    public PMap<K, V> read(ReadableByteChannel ch) throws IOException {
+        return read(ch, null);
+    }
+
+    // Reads a map, written with a hash strategy, from a channel.  The
+    // strategy is not encoded and must be the one the map was written with
+    public PMap<K, V> read(ReadableByteChannel ch, HashStrategy strategy) throws IOException {
+        checkKeys();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(ch), BUFFER_SIZE));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not an encoded PMap");
+        }
+        boolean cachesHashes = in.readBoolean();
+        if (in.readBoolean() != (strategy != null)) {
+            throw new IOException("Hash strategy does not match that of the encoded PMap");
+        }
+        int size = in.readInt();
+        PMap<K, V> m = readLayer(in, cachesHashes);
+        if (m.size != size) {
+            throw new IOException("Corrupt encoded PMap");
+        }
+        if (strategy != null) {
+            return new PMap<>(m.size, m.dataMap, m.nodeMap, m.nodes, m.hashes, strategy);
+        }
+        if (size == 0) {
+            return cachesHashes ? PMap.emptyCachingHashes() : PMap.empty();
+        }
+        return m;
+    }
+
+    PMap<K, V> readLayer(DataInput in, boolean cachesHashes) throws IOException {
+        int dataMap = in.readInt();
+        int nodeMap = in.readInt();
+        int dataCount = Integer.bitCount(dataMap);
+        Object[] nodes = new Object[dataCount * 2 + Integer.bitCount(nodeMap)];
+        int[] hashes = cachesHashes ? new int[dataCount] : null;
+        int size = dataCount;
+        for (int i = 0; i < dataCount; i++) {
+            // Mapping node
+            if (hashes != null) {
+                hashes[i] = in.readInt();
+            }
+            nodes[i * 2] = keys.read(in);
+            nodes[i * 2 + 1] = values.read(in);
+        }
+        for (int i = dataCount * 2; i < nodes.length; i++) {
+            byte kind = in.readByte();
+            if (kind == SUB_LAYER) {
+                // Sub-layer node
+                PMap<K, V> s = readLayer(in, cachesHashes);
+                nodes[i] = s;
+                size += s.size;
+            }
+            else if (kind == COLLISION) {
+                // Collision node
+                int h = in.readInt();
+                Object[] ms = new Object[in.readInt() * 2];
+                for (int j = 0; j < ms.length; j += 2) {
+                    ms[j] = keys.read(in);
+                    ms[j + 1] = values.read(in);
+                }
+                nodes[i] = PMap.CollisionNode.of(h, ms);
+                size += ms.length / 2;
+            }
+            else {
+                throw new IOException("Corrupt encoded PMap");
+            }
+        }
+        return new PMap<>(size, dataMap, nodeMap, nodes, hashes);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// A pool of canonical nodes, shared by the maps interned with the pool.
+// Interning a map replaces each layer, and collision node, by an equal
+// node in the pool, if any, otherwise the node is added to the pool, so
+// equal sub-tries of maps built independently, such as by separate
+// builders, are held once.
+// Layers are interned bottom-up, so two layers are equal if they have
+// equal mappings and identical sub-layer and collision nodes, and a
+// layer is compared in time proportional to its width, not to the size
+// of its sub-trie.  A layer already in the pool is not traversed.
+// Mappings are compared with equals, so an interned map may hold keys
+// and values that are equal to, but not identical to, those of the map
+// it was interned from.
+// The pool references nodes weakly, a node is removed when it is no
+// longer reachable from any map.
+// Interning is thread safe, a pool may be shared by many threads.
+public final class PMapInterner {
+    // Maps a reference to a node to itself
+    final Map<NodeRef, NodeRef> pool = new HashMap<>();
+    final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    // The number of nodes replaced by nodes in the pool
+    long hits;
+
+    public PMapInterner() {
+    }
+
+    // Returns a map, equal to a map, whose nodes are in this pool.
+    // Returns the map if it is already interned
+    public synchronized <K, V> PMap<K, V> intern(PMap<K, V> m) {
+        expunge();
+        if (m.size == 0) {
+            return m;
+        }
+
+        @SuppressWarnings("unchecked")
+        PMap<K, V> im = (PMap<K, V>) internLayer(m);
+        return im;
+    }
+
+    // The number of nodes in this pool, some of which may no longer be
+    // reachable but are not yet removed
+    public synchronized int size() {
+        expunge();
+        return pool.size();
+    }
+
+    // The number of nodes that interning replaced by nodes in this pool
+    public synchronized long hits() {
+        return hits;
+    }
+
+    private PMap<?, ?> internLayer(PMap<?, ?> m) {
+        PMap<?, ?> c = (PMap<?, ?>) lookup(m);
+        if (c != null) {
+            return c;
+        }
+
+        // Intern the sub-layer and collision nodes, copying the node array
+        // at most once when the first node is replaced
+        Object[] nodes = m.nodes;
+        int dataEnd = Integer.bitCount(m.dataMap) * 2;
+        for (int i = dataEnd; i < m.nodes.length; i++) {
+            Object n = m.nodes[i];
+            Object in = n instanceof PMap
+                        ? internLayer((PMap<?, ?>) n)
+                        : internCollision((PMap.CollisionNode) n);
+            if (in != n) {
+                if (nodes == m.nodes) {
+                    nodes = m.nodes.clone();
+                }
+                nodes[i] = in;
+            }
+        }
+
+        PMap<?, ?> im = nodes == m.nodes
+                        ? m
+                        : new PMap<>(m.size, m.dataMap, m.nodeMap, nodes, m.hashes, m.strategy);
+        if (im != m) {
+            // An equal layer may be in the pool now that its nodes are
+            c = (PMap<?, ?>) lookup(im);
+            if (c != null) {
+                return c;
+            }
+        }
+        add(im);
+        return im;
+    }
+
+    private PMap.CollisionNode internCollision(PMap.CollisionNode n) {
+        PMap.CollisionNode c = (PMap.CollisionNode) lookup(n);
+        if (c != null) {
+            return c;
+        }
+        add(n);
+        return n;
+    }
+
+    // Returns a node in the pool equal to a node, otherwise null
+    private Object lookup(Object n) {
+        NodeRef r = pool.get(new NodeRef(n, null));
+        Object c = r == null ? null : r.get();
+        if (c != null && c != n) {
+            hits++;
+        }
+        return c;
+    }
+
+    private void add(Object n) {
+        NodeRef r = new NodeRef(n, queue);
+        pool.put(r, r);
+    }
+
+    // Remove the references to nodes that are no longer reachable
+    private void expunge() {
+        for (Object r; (r = queue.poll()) != null; ) {
+            pool.remove(r);
+        }
+    }
+
+    // A weak reference to a node, equal to a reference to an equal node.
+    // A cleared reference is equal only to itself
+    static final class NodeRef extends WeakReference<Object> {
+        final int hash;
+
+        NodeRef(Object n, ReferenceQueue<Object> queue) {
+            super(n, queue);
+            this.hash = hash(n);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof NodeRef)) {
+                return false;
+            }
+
+            NodeRef that = (NodeRef) o;
+            if (hash != that.hash) {
+                return false;
+            }
+            Object n = get();
+            Object tn = that.get();
+            if (n == null || tn == null) {
+                return false;
+            }
+            if (n == tn) {
+                return true;
+            }
+            if (n instanceof PMap) {
+                return tn instanceof PMap && equalLayers((PMap<?, ?>) n, (PMap<?, ?>) tn);
+            }
+            return tn instanceof PMap.CollisionNode
+                   && ((PMap.CollisionNode) n).equalMappings((PMap.CollisionNode) tn);
+        }
+
+        // The hash code of the mappings of a node, which is cached by a
+        // layer, combined with the shape of the node.  A layer and the layer
+        // whose nodes are interned have the same hash
+        static int hash(Object n) {
+            if (n instanceof PMap) {
+                PMap<?, ?> m = (PMap<?, ?>) n;
+                int h = m.hashCode();
+                h = 31 * h + m.dataMap;
+                h = 31 * h + m.nodeMap;
+                return h;
+            }
+            else {
+                PMap.CollisionNode c = (PMap.CollisionNode) n;
+                return 31 * c.mappingsHashCode() + c.h;
+            }
+        }
+
+        // Layers are equal if they have equal mappings and identical nodes,
+        // and the same strategy and mode of caching hashes
+        static boolean equalLayers(PMap<?, ?> m, PMap<?, ?> tm) {
+            if (m.size != tm.size || m.dataMap != tm.dataMap || m.nodeMap != tm.nodeMap
+                || !Objects.equals(m.strategy, tm.strategy) || !Arrays.equals(m.hashes, tm.hashes)) {
+                return false;
+            }
+
+            int dataEnd = Integer.bitCount(m.dataMap) * 2;
+            for (int i = 0; i < dataEnd; i += 2) {
+                // Mapping node
+                if (!m.nodes[i].equals(tm.nodes[i]) || !Objects.equals(m.nodes[i + 1], tm.nodes[i + 1])) {
+                    return false;
+                }
+            }
+            for (int i = dataEnd; i < m.nodes.length; i++) {
+                // Sub-layer or collision node, already interned
+                if (m.nodes[i] != tm.nodes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+// A reference to a PMap that may be atomically updated by many threads.
+// An update first tries a small number of compare-and-set attempts.  If
+// those all fail, because of contention with other updates, the update
+// is queued and one thread, the combiner, applies all queued updates to
+// the current map as a single batch with a single compare-and-set.  Thus
+// under contention only one thread path-copies at a time, and the
+// intermediate maps of a batch are never published.
+// Functions passed to update methods may be applied more than once, and
+// so should be free of side effects.
+public final class PMapRef<K, V> {
+    // The number of compare-and-set attempts before combining
+    static final int CAS_ATTEMPTS = 2;
+
+    // The maximum number of updates combined in one batch, bounding the
+    // latency of the combiner
+    static final int MAX_BATCH = 1024;
+
+    // The number of spins waiting for a queued update before parking, so
+    // waiting threads do not consume processors needed by the combiner
+    static final int SPINS = 128;
+
+    // The maximum time parked before waiting threads check again if they
+    // may combine
+    static final long PARK_NANOS = 100_000;
+
+    // A queued update
+    static final class Request<K, V> {
+        final UnaryOperator<PMap<K, V>> op;
+        final Thread waiter;
+        // The map after the update was applied, or null if the update
+        // threw an exception or error
+        PMap<K, V> result;
+        Throwable error;
+        volatile boolean done;
+
+        Request(UnaryOperator<PMap<K, V>> op) {
+            this.op = op;
+            this.waiter = Thread.currentThread();
+        }
+    }
+
+    final AtomicReference<PMap<K, V>> ref;
+    final ConcurrentLinkedQueue<Request<K, V>> queue = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean combining = new AtomicBoolean();
+
+    final LongAdder retries = new LongAdder();
+    final LongAdder batches = new LongAdder();
+    final LongAdder combined = new LongAdder();
+    final LongAccumulator maxBatch = new LongAccumulator(Math::max, 0);
+
+    public PMapRef(PMap<K, V> m) {
+        ref = new AtomicReference<>(Objects.requireNonNull(m));
+    }
+
+    public PMap<K, V> get() {
+        return ref.get();
+    }
+
+    public void set(PMap<K, V> m) {
+        ref.set(Objects.requireNonNull(m));
+    }
+
+    // Updates the value associated with a key to the result of a function
+    // applied to the current value, or null if there is no current value.
+    // If the result is null the mapping is removed.
+    // Returns the updated value
+    public V update(K k, Function<? super V, ? extends V> f) {
+        return compute(k, (key, v) -> f.apply(v));
+    }
+
+    // Updates the value associated with a key to the result of a function
+    // applied to the key and the current value, or null if there is no
+    // current value.  If the result is null the mapping is removed.
+    // Returns the updated value
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return updateAndGet(m -> m.compute(k, f)).getOrNull(k);
+    }
+
+    public PMap<K, V> putAll(PMap<K, V> that) {
+        return updateAndGet(m -> m.putAll(that));
+    }
+
+    // Updates the map to the result of a function applied to the current
+    // map.  Returns the updated map, which is not necessarily the map
+    // referenced on return if the update was combined with others
+    public PMap<K, V> updateAndGet(UnaryOperator<PMap<K, V>> op) {
+        if (!combining.get()) {
+            for (int i = 0; i < CAS_ATTEMPTS; i++) {
+                PMap<K, V> m = ref.get();
+                PMap<K, V> nm = op.apply(m);
+                if (ref.compareAndSet(m, nm)) {
+                    return nm;
+                }
+                retries.increment();
+            }
+        }
+
+        Request<K, V> r = new Request<>(op);
+        queue.add(r);
+        for (int spins = 0; !r.done; ) {
+            if (!combining.get() && combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                }
+                finally {
+                    combining.set(false);
+                }
+            }
+            else if (spins < SPINS) {
+                spins++;
+                Thread.onSpinWait();
+            }
+            else {
+                // Unparked by the combiner when done, or parking times out
+                // should the combiner have finished before the request was
+                // queued
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+        Throwable e = r.error;
+        if (e != null) {
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new UndeclaredThrowableException(e);
+        }
+        return r.result;
+    }
+
+    // Applies queued updates as batches until the queue is empty.
+    // An exception or error thrown by an update is rethrown by the thread
+    // that queued it.  Should the combiner itself fail, the polled batch
+    // is completed with the failure, so no thread waits forever for it
+    void combine() {
+        List<Request<K, V>> batch = new ArrayList<>();
+        try {
+            combine(batch);
+        }
+        catch (Throwable e) {
+            for (Request<K, V> b : batch) {
+                b.result = null;
+                b.error = e;
+            }
+            complete(batch);
+            throw e;
+        }
+    }
+
+    private void combine(List<Request<K, V>> batch) {
+        while (true) {
+            Request<K, V> r;
+            while (batch.size() < MAX_BATCH && (r = queue.poll()) != null) {
+                batch.add(r);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            // Updates by threads that have not yet switched to combining
+            // may race with the batch, in which case the batch is reapplied
+            while (true) {
+                PMap<K, V> m = ref.get();
+                PMap<K, V> nm = m;
+                for (Request<K, V> b : batch) {
+                    try {
+                        nm = b.op.apply(nm);
+                        b.result = nm;
+                        b.error = null;
+                    }
+                    catch (Throwable e) {
+                        b.result = null;
+                        b.error = e;
+                    }
+                }
+                if (ref.compareAndSet(m, nm)) {
+                    break;
+                }
+                retries.increment();
+            }
+
+            batches.increment();
+            combined.add(batch.size());
+            maxBatch.accumulate(batch.size());
+            complete(batch);
+        }
+    }
+
+    // Marks the requests of a batch as done, waking their threads
+    private void complete(List<Request<K, V>> batch) {
+        for (Request<K, V> b : batch) {
+            b.done = true;
+            LockSupport.unpark(b.waiter);
+        }
+        batch.clear();
+    }
+
+    // The number of failed compare-and-set attempts
+    public long retries() {
+        return retries.sum();
+    }
+
+    // The number of batches applied by combining
+    public long batches() {
+        return batches.sum();
+    }
+
+    // The number of updates applied by combining
+    public long combinedUpdates() {
+        return combined.sum();
+    }
+
+    // The size of the largest batch applied by combining
+    public long maxBatchSize() {
+        return maxBatch.get();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// The shape of a PMap, for monitoring the quality of key hashes.
+// A map with well distributed hashes has layers with high fan-out, few
+// collision nodes, and mappings at a depth close to log32 of the size.
+// Degenerate hashes show as deep mappings, sparse layers of one or two
+// nodes, and many or large collision nodes.
+// Depth 0 is the root layer.
+public final class PMapStats {
+    final int size;
+    // Per depth, the number of layers, mapping nodes, sub-layer nodes and
+    // collision nodes
+    final int[] layers = new int[PMap.MAX_EXTENDED_LAYERS];
+    final int[] mappings = new int[PMap.MAX_EXTENDED_LAYERS];
+    final int[] subLayers = new int[PMap.MAX_EXTENDED_LAYERS];
+    final int[] collisions = new int[PMap.MAX_EXTENDED_LAYERS];
+    // Non-root layers with at most two nodes
+    int sparseLayers;
+    int collisionMappings;
+    int maxCollisionSize;
+    long estimatedBytes;
+    // The number of layers and collision nodes shared with another map
+    int sharedNodes;
+    final boolean compared;
+
+    PMapStats(PMap<?, ?> m, PMap<?, ?> other) {
+        size = m.size;
+        compared = other != null;
+        Set<Object> otherNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (other != null) {
+            collectNodes(other, otherNodes);
+        }
+        layer(m, 0, otherNodes);
+    }
+
+    static void collectNodes(PMap<?, ?> m, Set<Object> ns) {
+        ns.add(m);
+        for (int i = Integer.bitCount(m.dataMap) * 2; i < m.nodes.length; i++) {
+            Object n = m.nodes[i];
+            ns.add(n);
+            if (n instanceof PMap) {
+                collectNodes((PMap<?, ?>) n, ns);
+            }
+        }
+    }
+
+    void layer(PMap<?, ?> m, int depth, Set<Object> otherNodes) {
+        if (otherNodes.contains(m)) {
+            sharedNodes++;
+        }
+        int dataCount = Integer.bitCount(m.dataMap);
+        layers[depth]++;
+        mappings[depth] += dataCount;
+        if (depth > 0 && dataCount + Integer.bitCount(m.nodeMap) <= 2) {
+            sparseLayers++;
+        }
+        estimatedBytes += nodeBytes(m);
+
+        for (int i = dataCount * 2; i < m.nodes.length; i++) {
+            Object n = m.nodes[i];
+            if (n instanceof PMap) {
+                // Sub-layer node
+                subLayers[depth]++;
+                layer((PMap<?, ?>) n, depth + 1, otherNodes);
+            }
+            else {
+                // Collision node
+                PMap.CollisionNode c = (PMap.CollisionNode) n;
+                int cs = c.ms.length / 2;
+                collisions[depth]++;
+                collisionMappings += cs;
+                maxCollisionSize = Math.max(maxCollisionSize, cs);
+                estimatedBytes += nodeBytes(c);
+                if (otherNodes.contains(c)) {
+                    sharedNodes++;
+                }
+            }
+        }
+    }
+
+    // Estimates assume compressed class pointers and references, and
+    // 8 byte object alignment
+    static final int HEADER_BYTES = 12;
+
+    static final int ARRAY_HEADER_BYTES = 16;
+
+    static final int REFERENCE_BYTES = 4;
+
+    // The estimated number of bytes of a layer or collision node,
+    // excluding its sub-layer nodes, keys and values
+    static long nodeBytes(Object n) {
+        if (n instanceof PMap) {
+            PMap<?, ?> m = (PMap<?, ?>) n;
+            long bytes = objectBytes(4 * Integer.BYTES + 3 * REFERENCE_BYTES)
+                         + arrayBytes(m.nodes.length, REFERENCE_BYTES);
+            if (m.hashes != null && m.hashes.length > 0) {
+                bytes += arrayBytes(m.hashes.length, Integer.BYTES);
+            }
+            return bytes;
+        }
+        else {
+            PMap.CollisionNode c = (PMap.CollisionNode) n;
+            return objectBytes(Integer.BYTES + REFERENCE_BYTES + 1)
+                   + arrayBytes(c.ms.length, REFERENCE_BYTES);
+        }
+    }
+
+    static long objectBytes(int fieldBytes) {
+        return align(HEADER_BYTES + fieldBytes);
+    }
+
+    static long arrayBytes(int length, int elementBytes) {
+        return align(ARRAY_HEADER_BYTES + (long) length * elementBytes);
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The number of depths that have layers
+    public int depth() {
+        int d = 0;
+        while (d < layers.length && layers[d] > 0) {
+            d++;
+        }
+        return d;
+    }
+
+    // The number of layers at a depth
+    public int layers(int depth) {
+        return layers[depth];
+    }
+
+    // The number of mappings held directly, in mapping nodes, by the
+    // layers at a depth
+    public int mappings(int depth) {
+        return mappings[depth];
+    }
+
+    // The number of collision nodes held by the layers at a depth.
+    // Their mappings have the same hash and are of the next depth
+    public int collisionNodes(int depth) {
+        return collisions[depth];
+    }
+
+    // The average number of nodes of the layers at a depth, of at most
+    // 32
+    public double fanOut(int depth) {
+        return layers[depth] == 0
+               ? 0
+               : (double) (mappings[depth] + subLayers[depth] + collisions[depth]) / layers[depth];
+    }
+
+    public int layerCount() {
+        int n = 0;
+        for (int l : layers) {
+            n += l;
+        }
+        return n;
+    }
+
+    public int collisionNodeCount() {
+        int n = 0;
+        for (int c : collisions) {
+            n += c;
+        }
+        return n;
+    }
+
+    public int collisionMappings() {
+        return collisionMappings;
+    }
+
+    public int maxCollisionSize() {
+        return maxCollisionSize;
+    }
+
+    // The number of layers, other than the root, with one or two nodes
+    public int sparseLayers() {
+        return sparseLayers;
+    }
+
+    // The estimated number of bytes retained by the layers and collision
+    // nodes, excluding keys and values
+    public long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    // The estimated number of bytes per mapping, beyond the two references
+    // to the key and value that are the minimum any map requires
+    public double overheadBytesPerMapping() {
+        return size == 0 ? 0 : (double) estimatedBytes / size - 2 * REFERENCE_BYTES;
+    }
+
+    // The fraction of layers and collision nodes shared with the map
+    // compared with, or NaN if there was no comparison
+    public double sharedFraction() {
+        if (!compared) {
+            return Double.NaN;
+        }
+        return (double) sharedNodes / (layerCount() + collisionNodeCount());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("size=%d layers=%d collisionNodes=%d collisionMappings=%d " +
+                                "maxCollisionSize=%d sparseLayers=%d estimatedBytes=%d%n",
+                                size, layerCount(), collisionNodeCount(), collisionMappings,
+                                maxCollisionSize, sparseLayers, estimatedBytes));
+        for (int d = 0; d < depth(); d++) {
+            sb.append(String.format("  depth=%d layers=%d mappings=%d collisionNodes=%d fanOut=%.2f%n",
+                                    d, layers[d], mappings[d], collisions[d], fanOut(d)));
+        }
+        if (compared) {
+            sb.append(String.format("  shared=%.3f%n", sharedFraction()));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,919 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+// A persistent set.
+// The hash trie is that of PMap, with the same bitmaps, sub-layer and
+// collision nodes, and canonical shape, but a layer holds only the
+// elements, and not a key and a value for each mapping.
+public class PSet<E> implements Iterable<E> {
+    static final PSet<?> EMPTY_PSET = new PSet<>(0, 0, 0, PMap.EMPTY_NODES);
+
+    // @Stable
+    final int size;
+    // bit map of symbols of element nodes
+    // @Stable
+    final int dataMap;
+    // bit map of symbols of sub-layer and collision nodes
+    // @Stable
+    final int nodeMap;
+    // [e, ..., e, n, ..., n]
+    // Element nodes are contiguous and first, in symbol order, followed
+    // by sub-layer nodes, PSet, and collision nodes, CollisionNode, which
+    // are contiguous, last, and in reverse symbol order
+    // invariant: a sub-layer will not consist of a single element node,
+    // or of a single collision node
+    // @Stable
+    final Object[] nodes;
+    // The hash code of the elements, computed lazily, or 0 if not yet
+    // computed
+    int hashCode;
+
+    PSet(int size, int dataMap, int nodeMap, Object[] nodes) {
+        this.size = size;
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
+        this.nodes = nodes;
+    }
+
+    private PSet(CollisionNode c, int levelShift) {
+        this(c.es.length, 0, 1 << PMap.symbolAtDepth(c.h, levelShift), new Object[]{c});
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PSet<E> empty() {
+        return (PSet<E>) EMPTY_PSET;
+    }
+
+    public static <E> PSet<E> of(E e) {
+        return new PSet<>(1, 1 << PMap.symbolAtDepth(PMap.hash(e), 0), 0, new Object[]{e});
+    }
+
+    public static <E> PSet<E> of(Consumer<PSetBuilder<E>> c) {
+        PSetBuilder<E> b = new PSetBuilder<>();
+        PSet<E> s = null;
+        try {
+            c.accept(b);
+            s = b.build();
+        } finally {
+            if (s == null) {
+                // Exception occurred
+                b.clear();
+            }
+        }
+        return s;
+    }
+
+    // Returns a builder whose initial elements are those of this set.
+    // Nodes of this set are copied by the builder at most once, when
+    // first modified, and thereafter modified in place.
+    public PSetBuilder<E> toBuilder() {
+        return new PSetBuilder<>(this);
+    }
+
+    // Node array operations, each returning a new node array
+
+    // Insert o at index i
+    static Object[] insert(Object[] nodes, int i, Object o) {
+        Object[] n_nodes = new Object[nodes.length + 1];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        n_nodes[i] = o;
+        System.arraycopy(nodes, i,
+                         n_nodes, i + 1, nodes.length - i);
+        return n_nodes;
+    }
+
+    // Remove index i
+    static Object[] removeAt(Object[] nodes, int i) {
+        if (nodes.length == 1)
+            return PMap.EMPTY_NODES;
+
+        Object[] n_nodes = new Object[nodes.length - 1];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, i);
+        System.arraycopy(nodes, i + 1,
+                         n_nodes, i, nodes.length - i - 1);
+        return n_nodes;
+    }
+
+    // Replace the element node at index di with node n, placed at index ni
+    // of the new node array
+    static Object[] migrateDataToNode(Object[] nodes, int di, int ni, Object n) {
+        Object[] n_nodes = new Object[nodes.length];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, di);
+        System.arraycopy(nodes, di + 1,
+                         n_nodes, di, ni - di);
+        n_nodes[ni] = n;
+        System.arraycopy(nodes, ni + 1,
+                         n_nodes, ni + 1, nodes.length - ni - 1);
+        return n_nodes;
+    }
+
+    // Replace the node at index ni with element node e placed at index di
+    // of the new node array
+    static Object[] migrateNodeToData(Object[] nodes, int ni, int di, Object e) {
+        Object[] n_nodes = new Object[nodes.length];
+        System.arraycopy(nodes, 0,
+                         n_nodes, 0, di);
+        n_nodes[di] = e;
+        System.arraycopy(nodes, di,
+                         n_nodes, di + 1, ni - di);
+        System.arraycopy(nodes, ni + 1,
+                         n_nodes, ni + 1, nodes.length - ni - 1);
+        return n_nodes;
+    }
+
+    static int nodeIndex(Object[] nodes, int nodeMap, int symbol) {
+        return nodes.length - 1 - PMap.bitmapCountFrom(nodeMap, symbol);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void forEach(Consumer<? super E> action) {
+        int dataEnd = Integer.bitCount(dataMap);
+        for (int i = 0; i < dataEnd; i++) {
+            // Element node
+
+            @SuppressWarnings("unchecked")
+            E e = (E) nodes[i];
+            action.accept(e);
+        }
+        for (int i = nodes.length - 1; i >= dataEnd; i--) {
+            forEachInNode(nodes[i], action);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> void forEachInNode(Object n, Consumer<? super E> action) {
+        if (n instanceof PSet) {
+            // Sub-layer node
+            ((PSet<E>) n).forEach(action);
+        }
+        else {
+            // Collision node
+            for (Object e : ((CollisionNode) n).es) {
+                action.accept((E) e);
+            }
+        }
+    }
+
+    public boolean contains(Object e) {
+        return find(this, e, PMap.hash(e), 0) != PMap.NOT_FOUND;
+    }
+
+    // Returns the element equal to e in a layer at a depth, otherwise
+    // NOT_FOUND.
+    // Iterates through the sub-layers, rather than recursing, and does
+    // not allocate
+    static Object find(PSet<?> s, Object e, int h, int dShift) {
+        for (; ; dShift += PMap.PREFIX_BIT_SIZE) {
+            int symbol = PMap.symbolAtDepth(h, dShift);
+            if (PMap.bitmapGet(s.dataMap, symbol) != 0) {
+                // Element node
+
+                Object _e = s.nodes[PMap.bitmapCountFrom(s.dataMap, symbol)];
+                return _e.equals(e) ? _e : PMap.NOT_FOUND;
+            }
+            else if (PMap.bitmapGet(s.nodeMap, symbol) != 0) {
+                Object n = s.nodes[nodeIndex(s.nodes, s.nodeMap, symbol)];
+                if (n instanceof PSet) {
+                    // Sub-layer node
+
+                    s = (PSet<?>) n;
+                }
+                else {
+                    // Collision node
+
+                    return ((CollisionNode) n).find(e, h);
+                }
+            }
+            else {
+                // Element does not exist
+                return PMap.NOT_FOUND;
+            }
+        }
+    }
+
+    // Returns the element equal to e in a sub-layer or collision node at a
+    // depth, otherwise NOT_FOUND
+    static Object findInNode(Object n, Object e, int h, int dShift) {
+        return n instanceof PSet
+               ? find((PSet<?>) n, e, h, dShift)
+               : ((CollisionNode) n).find(e, h);
+    }
+
+    public PSet<E> add(E e) {
+        return add(e, PMap.hash(e), 0);
+    }
+
+    private PSet<E> add(Object e, int h, int dShift) {
+        int symbol = PMap.symbolAtDepth(h, dShift);
+
+        if (PMap.bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing element node
+
+            int i = PMap.bitmapCountFrom(dataMap, symbol);
+            Object _e = nodes[i];
+            if (_e.equals(e)) {
+                // Element exists
+                return this;
+            }
+
+            int _h = PMap.hash(_e);
+            Object n;
+            if (h == _h) {
+                // Replace element node with collision node
+                n = new CollisionNode(h, new Object[]{_e, e});
+            }
+            else {
+                // Replace element node with a sub-layer node
+                n = mergeTwo(_e, _h, e, h, dShift + PMap.PREFIX_BIT_SIZE);
+            }
+
+            return new PSet<>(size + 1,
+                              PMap.bitmapClear(dataMap, symbol),
+                              PMap.bitmapSet(nodeMap, symbol),
+                              migrateDataToNode(nodes, i, nodeIndex(nodes, nodeMap, symbol), n));
+        }
+        else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+            int ni = nodeIndex(nodes, nodeMap, symbol);
+            Object n = addToNode(nodes[ni], e, h, dShift + PMap.PREFIX_BIT_SIZE);
+            if (n == nodes[ni]) {
+                return this;
+            }
+
+            return new PSet<>(size + 1, dataMap, nodeMap, PMap.set(nodes, ni, n));
+        }
+        else {
+            // Element node is free
+
+            return new PSet<>(size + 1,
+                              PMap.bitmapSet(dataMap, symbol),
+                              nodeMap,
+                              insert(nodes, PMap.bitmapCountFrom(dataMap, symbol), e));
+        }
+    }
+
+    // Add an element to a sub-layer or collision node at a depth
+    @SuppressWarnings("unchecked")
+    static <E> Object addToNode(Object n, Object e, int h, int dShift) {
+        if (n instanceof PSet) {
+            // Sub-layer node
+            return ((PSet<E>) n).add(e, h, dShift);
+        }
+
+        // Collision node
+        CollisionNode c = (CollisionNode) n;
+        if (h == c.h) {
+            // Collision with existing elements in collision node
+            return c.add(e);
+        }
+        else {
+            // Replace collision node with a sub-layer node
+            return new PSet<E>(c, dShift).add(e, h, dShift);
+        }
+    }
+
+    // Create a sub-layer node, at a depth, from two elements with different
+    // hashes
+    static <E> PSet<E> mergeTwo(Object e0, int h0, Object e1, int h1, int dShift) {
+        int s0 = PMap.symbolAtDepth(h0, dShift);
+        int s1 = PMap.symbolAtDepth(h1, dShift);
+        if (s0 != s1) {
+            return new PSet<>(2, (1 << s0) | (1 << s1), 0,
+                              s0 < s1 ? new Object[]{e0, e1} : new Object[]{e1, e0});
+        }
+        else {
+            // Prefix conflict at this depth
+            PSet<E> s = mergeTwo(e0, h0, e1, h1, dShift + PMap.PREFIX_BIT_SIZE);
+            return new PSet<>(2, 0, 1 << s0, new Object[]{s});
+        }
+    }
+
+    public PSet<E> remove(E e) {
+        return remove(e, PMap.hash(e), 0);
+    }
+
+    private PSet<E> remove(Object e, int h, int dShift) {
+        int symbol = PMap.symbolAtDepth(h, dShift);
+
+        if (PMap.bitmapGet(dataMap, symbol) != 0) {
+            // Prefix conflict with existing element node
+
+            int i = PMap.bitmapCountFrom(dataMap, symbol);
+            if (!nodes[i].equals(e)) {
+                // Element does not exist
+
+                return this;
+            }
+
+            // Remove element
+
+            if (size == 1) {
+                // Empty layer
+
+                return empty();
+            }
+
+            return new PSet<>(size - 1, PMap.bitmapClear(dataMap, symbol), nodeMap, removeAt(nodes, i));
+        }
+        else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+            int ni = nodeIndex(nodes, nodeMap, symbol);
+            Object n = nodes[ni];
+            Object r = removeFromNode(n, e, h, dShift + PMap.PREFIX_BIT_SIZE);
+            if (r == n) {
+                // Element does not exist
+
+                return this;
+            }
+
+            return withNode(symbol, ni, r);
+        }
+        else {
+            // Element does not exist
+
+            return this;
+        }
+    }
+
+    // Remove an element from a sub-layer or collision node at a depth
+    @SuppressWarnings("unchecked")
+    static <E> Object removeFromNode(Object n, Object e, int h, int dShift) {
+        if (n instanceof PSet) {
+            // Sub-layer node
+            return ((PSet<E>) n).remove(e, h, dShift);
+        }
+
+        // Collision node
+        CollisionNode c = (CollisionNode) n;
+        return h != c.h ? c : c.remove(e);
+    }
+
+    // Replace the node at index ni, of a symbol, with a modified node with
+    // fewer elements.  A node with one element, or a sub-layer of one
+    // collision node, is folded into this layer to retain the element and
+    // collision node count invariants
+    private PSet<E> withNode(int symbol, int ni, Object r) {
+        int rSize = nodeSize(r);
+        int n_size = size - nodeSize(nodes[ni]) + rSize;
+        if (rSize == 1) {
+            // One element node remaining, fold into this layer
+
+            Object e = r instanceof PSet ? ((PSet<?>) r).nodes[0] : ((CollisionNode) r).es[0];
+            return new PSet<>(n_size,
+                              PMap.bitmapSet(dataMap, symbol),
+                              PMap.bitmapClear(nodeMap, symbol),
+                              migrateNodeToData(nodes, ni, PMap.bitmapCountFrom(dataMap, symbol), e));
+        }
+        if (r instanceof PSet) {
+            PSet<?> s = (PSet<?>) r;
+            if (s.dataMap == 0 && s.nodes.length == 1 && s.nodes[0] instanceof CollisionNode) {
+                // One collision node remaining, fold into this layer
+                r = s.nodes[0];
+            }
+        }
+        return new PSet<>(n_size, dataMap, nodeMap, PMap.set(nodes, ni, r));
+    }
+
+    // The number of elements of a sub-layer or collision node
+    static int nodeSize(Object n) {
+        return n instanceof PSet ? ((PSet<?>) n).size : ((CollisionNode) n).es.length;
+    }
+
+    // Set operations.
+    // Both tries are traversed together, layer by layer.  Nodes identical
+    // in both are not traversed, and a node of only one of the tries is
+    // shared with the result when it is retained, so the cost is
+    // proportional to the overlap of the sets rather than their size
+
+    static final int UNION = 0;
+    static final int INTERSECT = 1;
+    static final int DIFFERENCE = 2;
+
+    // Returns a set of the elements in this set or that set
+    public PSet<E> union(PSet<E> that) {
+        return combine(this, that, 0, UNION);
+    }
+
+    // Returns a set of the elements in both this set and that set.
+    // An element of the result is that of this set
+    public PSet<E> intersect(PSet<E> that) {
+        return combine(this, that, 0, INTERSECT);
+    }
+
+    // Returns a set of the elements in this set that are not in that set
+    public PSet<E> difference(PSet<E> that) {
+        return combine(this, that, 0, DIFFERENCE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> PSet<E> combine(PSet<E> s, PSet<E> ts, int dShift, int op) {
+        if (s == ts) {
+            return op == DIFFERENCE ? empty() : s;
+        }
+        if (ts.size == 0) {
+            return op == INTERSECT ? ts : s;
+        }
+        if (s.size == 0) {
+            return op == UNION ? ts : s;
+        }
+
+        int symbols = s.dataMap | s.nodeMap;
+        int tSymbols = ts.dataMap | ts.nodeMap;
+        symbols = op == UNION
+                  ? symbols | tSymbols
+                  : op == INTERSECT ? symbols & tSymbols : symbols;
+
+        // Element nodes from the front, other nodes from the back, each
+        // symbol occupying at most one index, compacted when done if
+        // there are fewer
+        Object[] r_nodes = new Object[Integer.bitCount(symbols)];
+        int r_size = 0, r_dataMap = 0, r_nodeMap = 0, di = 0, ni = 0;
+        // The result is identical to this set or that set
+        boolean isThis = true, isThat = true;
+        for (int bits = symbols; bits != 0; bits &= bits - 1) {
+            int symbol = Integer.numberOfTrailingZeros(bits);
+            int nextDShift = dShift + PMap.PREFIX_BIT_SIZE;
+
+            // The result for the symbol, nothing, an element node if e is
+            // not NOT_FOUND, or otherwise a sub-layer or collision node n
+            Object e = PMap.NOT_FOUND;
+            Object n = null;
+            if (PMap.bitmapGet(s.dataMap, symbol) != 0) {
+                Object _e = s.nodes[PMap.bitmapCountFrom(s.dataMap, symbol)];
+                if (PMap.bitmapGet(ts.dataMap, symbol) != 0) {
+                    // Element node in both
+
+                    Object te = ts.nodes[PMap.bitmapCountFrom(ts.dataMap, symbol)];
+                    if (_e.equals(te)) {
+                        if (op != DIFFERENCE) {
+                            e = _e;
+                        }
+                    }
+                    else if (op == UNION) {
+                        int _h = PMap.hash(_e);
+                        int th = PMap.hash(te);
+                        n = _h == th
+                            ? new CollisionNode(_h, new Object[]{_e, te})
+                            : mergeTwo(_e, _h, te, th, nextDShift);
+                    }
+                    else if (op == DIFFERENCE) {
+                        e = _e;
+                    }
+                }
+                else if (PMap.bitmapGet(ts.nodeMap, symbol) != 0) {
+                    // Element node in this, sub-layer or collision node in that
+
+                    Object tn = ts.nodes[nodeIndex(ts.nodes, ts.nodeMap, symbol)];
+                    int _h = PMap.hash(_e);
+                    boolean contained = findInNode(tn, _e, _h, nextDShift) != PMap.NOT_FOUND;
+                    if (op == UNION) {
+                        n = contained ? tn : addToNode(tn, _e, _h, nextDShift);
+                    }
+                    else if (contained == (op == INTERSECT)) {
+                        e = _e;
+                    }
+                }
+                else {
+                    // Element node in this only
+                    e = _e;
+                }
+            }
+            else if (PMap.bitmapGet(s.nodeMap, symbol) != 0) {
+                Object _n = s.nodes[nodeIndex(s.nodes, s.nodeMap, symbol)];
+                if (PMap.bitmapGet(ts.dataMap, symbol) != 0) {
+                    // Sub-layer or collision node in this, element node in that
+
+                    Object te = ts.nodes[PMap.bitmapCountFrom(ts.dataMap, symbol)];
+                    int th = PMap.hash(te);
+                    if (op == UNION) {
+                        n = addToNode(_n, te, th, nextDShift);
+                    }
+                    else if (op == INTERSECT) {
+                        e = findInNode(_n, te, th, nextDShift);
+                    }
+                    else {
+                        n = removeFromNode(_n, te, th, nextDShift);
+                    }
+                }
+                else if (PMap.bitmapGet(ts.nodeMap, symbol) != 0) {
+                    // Sub-layer or collision node in both
+
+                    Object tn = ts.nodes[nodeIndex(ts.nodes, ts.nodeMap, symbol)];
+                    n = combineNode(_n, tn, nextDShift, op);
+                }
+                else {
+                    // Sub-layer or collision node in this only
+                    n = _n;
+                }
+            }
+            else {
+                // Element node, sub-layer or collision node in that only,
+                // for a union
+                if (PMap.bitmapGet(ts.dataMap, symbol) != 0) {
+                    e = ts.nodes[PMap.bitmapCountFrom(ts.dataMap, symbol)];
+                }
+                else {
+                    n = ts.nodes[nodeIndex(ts.nodes, ts.nodeMap, symbol)];
+                }
+            }
+
+            if (n != null) {
+                // Normalize a node of fewer than two elements, or a
+                // sub-layer of one collision node
+                int nSize = nodeSize(n);
+                if (nSize == 0) {
+                    n = null;
+                }
+                else if (nSize == 1) {
+                    e = n instanceof PSet ? ((PSet<?>) n).nodes[0] : ((CollisionNode) n).es[0];
+                    n = null;
+                }
+                else if (n instanceof PSet) {
+                    PSet<?> ns = (PSet<?>) n;
+                    if (ns.dataMap == 0 && ns.nodes.length == 1 && ns.nodes[0] instanceof CollisionNode) {
+                        n = ns.nodes[0];
+                    }
+                }
+            }
+
+            if (e != PMap.NOT_FOUND) {
+                isThis &= PMap.bitmapGet(s.dataMap, symbol) != 0 &&
+                          s.nodes[PMap.bitmapCountFrom(s.dataMap, symbol)] == e;
+                isThat &= PMap.bitmapGet(ts.dataMap, symbol) != 0 &&
+                          ts.nodes[PMap.bitmapCountFrom(ts.dataMap, symbol)] == e;
+                r_nodes[di++] = e;
+                r_dataMap |= 1 << symbol;
+                r_size++;
+            }
+            else if (n != null) {
+                isThis &= PMap.bitmapGet(s.nodeMap, symbol) != 0 &&
+                          s.nodes[nodeIndex(s.nodes, s.nodeMap, symbol)] == n;
+                isThat &= PMap.bitmapGet(ts.nodeMap, symbol) != 0 &&
+                          ts.nodes[nodeIndex(ts.nodes, ts.nodeMap, symbol)] == n;
+                r_nodes[r_nodes.length - 1 - ni++] = n;
+                r_nodeMap |= 1 << symbol;
+                r_size += nodeSize(n);
+            }
+        }
+
+        if (isThis && r_size == s.size) {
+            return s;
+        }
+        if (isThat && r_size == ts.size) {
+            return ts;
+        }
+        if (r_size == 0) {
+            return empty();
+        }
+
+        if (di + ni < r_nodes.length) {
+            // Symbols with no result
+            Object[] n_nodes = new Object[di + ni];
+            System.arraycopy(r_nodes, 0,
+                             n_nodes, 0, di);
+            System.arraycopy(r_nodes, r_nodes.length - ni,
+                             n_nodes, di, ni);
+            r_nodes = n_nodes;
+        }
+        return new PSet<>(r_size, r_dataMap, r_nodeMap, r_nodes);
+    }
+
+    // Combination of two sub-layer or collision nodes at the same symbol
+    private static <E> Object combineNode(Object n, Object tn, int dShift, int op) {
+        if (n == tn) {
+            return op == DIFFERENCE ? EMPTY_PSET : n;
+        }
+
+        if (n instanceof CollisionNode && tn instanceof CollisionNode &&
+            ((CollisionNode) n).h == ((CollisionNode) tn).h) {
+            return ((CollisionNode) n).combine((CollisionNode) tn, op);
+        }
+
+        // Combine as sub-layers, where a collision node is the single node
+        // of a sub-layer
+        PSet<E> s = asSubLayer(n, dShift);
+        PSet<E> ts = asSubLayer(tn, dShift);
+        PSet<E> r = combine(s, ts, dShift, op);
+        if (r == s) {
+            return n;
+        }
+        if (r == ts) {
+            return tn;
+        }
+        if (r.dataMap == 0 && r.nodes.length == 1 && r.nodes[0] instanceof CollisionNode) {
+            // Retain collision node count invariant
+            return r.nodes[0];
+        }
+        return r;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> PSet<E> asSubLayer(Object n, int dShift) {
+        return n instanceof PSet ? (PSet<E>) n : new PSet<>((CollisionNode) n, dShift);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new ElementIterator<>(this);
+    }
+
+    // Two sets are equal if they have equal elements.
+    // Sets with equal elements have the same shape, so the bitmaps of
+    // each layer are compared before the elements, and a node identical
+    // in both sets is not traversed
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PSet)) {
+            return false;
+        }
+
+        return equals(this, (PSet<?>) o);
+    }
+
+    private static boolean equals(PSet<?> s, PSet<?> ts) {
+        if (s.size != ts.size || s.dataMap != ts.dataMap || s.nodeMap != ts.nodeMap) {
+            return false;
+        }
+        if (s.hashCode != 0 && ts.hashCode != 0 && s.hashCode != ts.hashCode) {
+            return false;
+        }
+
+        int dataEnd = Integer.bitCount(s.dataMap);
+        for (int i = 0; i < dataEnd; i++) {
+            // Element node
+            if (!s.nodes[i].equals(ts.nodes[i])) {
+                return false;
+            }
+        }
+        for (int i = dataEnd; i < s.nodes.length; i++) {
+            Object n = s.nodes[i];
+            Object tn = ts.nodes[i];
+            if (n == tn) {
+                continue;
+            }
+
+            if (n instanceof PSet) {
+                // Sub-layer node
+                if (!(tn instanceof PSet) || !equals((PSet<?>) n, (PSet<?>) tn)) {
+                    return false;
+                }
+            }
+            else {
+                // Collision node
+                if (!(tn instanceof CollisionNode) ||
+                    ((CollisionNode) n).es.length != ((CollisionNode) tn).es.length ||
+                    ((CollisionNode) n).combine((CollisionNode) tn, DIFFERENCE).es.length != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // The sum of the hash codes of the elements, as specified by
+    // Set.hashCode.
+    // The hash code of each node is computed at most once, when first
+    // required
+    @Override
+    public int hashCode() {
+        int hc = hashCode;
+        if (hc == 0) {
+            int dataEnd = Integer.bitCount(dataMap);
+            for (int i = 0; i < dataEnd; i++) {
+                // Element node
+                hc += nodes[i].hashCode();
+            }
+            for (int i = dataEnd; i < nodes.length; i++) {
+                Object n = nodes[i];
+                if (n instanceof PSet) {
+                    // Sub-layer node
+                    hc += n.hashCode();
+                }
+                else {
+                    // Collision node
+                    for (Object e : ((CollisionNode) n).es) {
+                        hc += e.hashCode();
+                    }
+                }
+            }
+            hashCode = hc;
+        }
+        return hc;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[ ");
+        int l = sb.length();
+        forEach(e -> {
+            if (sb.length() > l) sb.append(", ");
+            sb.append(e);
+        });
+        return sb.append(" ]").toString();
+    }
+
+    static final class CollisionNode {
+        final int h;
+        final Object[] es;
+        // invariant: es.length >= 2, at least two elements
+
+        CollisionNode(int h, Object[] es) {
+            this.h = h;
+            this.es = es;
+        }
+
+        // Returns the element equal to e, otherwise NOT_FOUND
+        Object find(Object e, int h) {
+            if (h != this.h)
+                return PMap.NOT_FOUND;
+
+            for (Object _e : es) {
+                if (e.equals(_e))
+                    return _e;
+            }
+
+            return PMap.NOT_FOUND;
+        }
+
+        CollisionNode add(Object e) {
+            if (find(e, h) != PMap.NOT_FOUND) {
+                return this;
+            }
+
+            Object[] n_es = Arrays.copyOf(es, es.length + 1);
+            n_es[es.length] = e;
+            return new CollisionNode(h, n_es);
+        }
+
+        // The result may have fewer than two elements
+        CollisionNode remove(Object e) {
+            for (int i = 0; i < es.length; i++) {
+                if (e.equals(es[i])) {
+                    return new CollisionNode(h, removeAt(es, i));
+                }
+            }
+            return this;
+        }
+
+        // Combination with that collision node of the same hash.  The
+        // result may have fewer than two elements
+        CollisionNode combine(CollisionNode that, int op) {
+            Object[] r_es = new Object[op == UNION ? es.length + that.es.length : es.length];
+            int length = 0;
+            if (op == UNION) {
+                System.arraycopy(es, 0,
+                                 r_es, 0, es.length);
+                length = es.length;
+                for (Object te : that.es) {
+                    if (find(te, h) == PMap.NOT_FOUND) {
+                        r_es[length++] = te;
+                    }
+                }
+            }
+            else {
+                for (Object e : es) {
+                    if ((that.find(e, h) != PMap.NOT_FOUND) == (op == INTERSECT)) {
+                        r_es[length++] = e;
+                    }
+                }
+            }
+
+            if (length == es.length) {
+                return this;
+            }
+            if (op == UNION && length == that.es.length) {
+                return that;
+            }
+            return new CollisionNode(h, Arrays.copyOf(r_es, length));
+        }
+    }
+
+    // An iterator over the elements, traversing iteratively using an
+    // explicit stack as for PMap.NodeIterator
+    static final class ElementIterator<E> implements Iterator<E> {
+        final PSet<?>[] layers = new PSet<?>[PMap.MAX_LAYERS];
+        final int[] indexes = new int[PMap.MAX_LAYERS];
+        // The top of the stack, -1 if traversal of the layers is complete
+        int depth;
+
+        // Collision node being traversed
+        Object[] es;
+        int esIndex;
+
+        // The next element, if hasNext
+        boolean hasNext;
+        Object e;
+
+        ElementIterator(PSet<E> s) {
+            layers[0] = s;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+
+            E _e = (E) e;
+            advance();
+            return _e;
+        }
+
+        // Find the next element
+        void advance() {
+            hasNext = true;
+            if (es != null) {
+                if (esIndex < es.length) {
+                    e = es[esIndex++];
+                    return;
+                }
+                es = null;
+            }
+
+            while (depth >= 0) {
+                PSet<?> s = layers[depth];
+                int dataCount = Integer.bitCount(s.dataMap);
+                int i = indexes[depth];
+                if (i < dataCount) {
+                    // Element node
+                    indexes[depth] = i + 1;
+                    e = s.nodes[i];
+                    return;
+                }
+                else if (i < s.nodes.length) {
+                    indexes[depth] = i + 1;
+                    // Sub-layer and collision nodes in symbol order
+                    Object n = s.nodes[s.nodes.length - 1 - (i - dataCount)];
+                    if (n instanceof PSet) {
+                        // Sub-layer node, push
+                        depth++;
+                        layers[depth] = (PSet<?>) n;
+                        indexes[depth] = 0;
+                    }
+                    else {
+                        // Collision node
+                        es = ((CollisionNode) n).es;
+                        e = es[0];
+                        esIndex = 1;
+                        return;
+                    }
+                }
+                else {
+                    // Layer traversed, pop
+                    layers[depth] = null;
+                    depth--;
+                }
+            }
+
+            hasNext = false;
+            e = null;
+        }
+    }
+}
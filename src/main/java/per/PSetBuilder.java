@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+// A builder of a PSet.
+// Building is thread confined.
+// Freezing transitions from mutable to immutable state and invalidates
+// the builder.
+// A builder may start from an existing PSet, in which case the nodes of
+// the PSet are shared and a node is copied to a mutable node at most
+// once, when first modified.  Thereafter the mutable node, owned by the
+// builder, is modified in place.
+public class PSetBuilder<E> {
+    final Thread t;
+    MutableLayer m;
+
+    PSetBuilder() {
+        t = Thread.currentThread();
+        m = new MutableLayer(0, 0, 0, PMap.EMPTY_NODES);
+    }
+
+    PSetBuilder(PSet<E> base) {
+        t = Thread.currentThread();
+        m = new MutableLayer(base);
+    }
+
+    // Freezes the mutable nodes into PSet nodes, reusing the node arrays.
+    // Sub-layer nodes that are PSet are shared with the PSet the builder
+    // started from and are already frozen.
+    static <E> PSet<E> toPSet(MutableLayer m) {
+        int dataEnd = Integer.bitCount(m.dataMap);
+        for (int i = dataEnd; i < m.nodes.length; i++) {
+            if (m.nodes[i] instanceof MutableLayer) {
+                // Mutable sub-layer node
+                m.nodes[i] = toPSet((MutableLayer) m.nodes[i]);
+            }
+        }
+        return m.size == 0 ? PSet.empty() : new PSet<>(m.size, m.dataMap, m.nodeMap, m.nodes);
+    }
+
+    // Guard a modification, only if the builder has not been built and
+    // the current thread is the same as the thread that created
+    // the builder
+    void checkState() {
+        if (m == null || t != Thread.currentThread())
+            throw new IllegalStateException();
+    }
+
+    public PSetBuilder<E> add(E e) {
+        checkState();
+
+        m.add(e, PMap.hash(e), 0);
+        return this;
+    }
+
+    public PSetBuilder<E> remove(E e) {
+        checkState();
+
+        m.remove(e, PMap.hash(e), 0);
+        return this;
+    }
+
+    public PSet<E> build() {
+        checkState();
+
+        MutableLayer _m = m;
+        // Transition the builder to the built state
+        clear();
+        return toPSet(_m);
+    }
+
+    void clear() {
+        m = null;
+    }
+
+    static final class MutableLayer {
+        int size;
+        int dataMap;
+        int nodeMap;
+        Object[] nodes;
+
+        // Copy a frozen node so that it may be modified
+        MutableLayer(PSet<?> s) {
+            this(s.size, s.dataMap, s.nodeMap, s.nodes.clone());
+        }
+
+        MutableLayer(int size, int dataMap, int nodeMap, Object[] nodes) {
+            this.size = size;
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.nodes = nodes;
+        }
+
+        // Create a sub-layer node, at a depth, from two elements with
+        // different hashes
+        static MutableLayer mergeTwo(Object e0, int h0, Object e1, int h1, int dShift) {
+            int s0 = PMap.symbolAtDepth(h0, dShift);
+            int s1 = PMap.symbolAtDepth(h1, dShift);
+            if (s0 != s1) {
+                return new MutableLayer(2, (1 << s0) | (1 << s1), 0,
+                                        s0 < s1 ? new Object[]{e0, e1} : new Object[]{e1, e0});
+            }
+            else {
+                // Prefix conflict at this depth
+                MutableLayer s = mergeTwo(e0, h0, e1, h1, dShift + PMap.PREFIX_BIT_SIZE);
+                return new MutableLayer(2, 0, 1 << s0, new Object[]{s});
+            }
+        }
+
+        // Get the sub-layer node at index i of the nodes, copying it
+        // if it is frozen
+        MutableLayer mutableSubLayer(int i) {
+            Object s = nodes[i];
+            if (s instanceof MutableLayer) {
+                return (MutableLayer) s;
+            }
+
+            MutableLayer ms = new MutableLayer((PSet<?>) s);
+            nodes[i] = ms;
+            return ms;
+        }
+
+        // Returns true if the element was added, otherwise false if
+        // the element exists
+        boolean add(Object e, int h, int dShift) {
+            int symbol = PMap.symbolAtDepth(h, dShift);
+
+            if (PMap.bitmapGet(dataMap, symbol) != 0) {
+                // Prefix conflict with existing element node
+
+                int i = PMap.bitmapCountFrom(dataMap, symbol);
+                Object _e = nodes[i];
+                if (_e.equals(e)) {
+                    // Element exists
+                    return false;
+                }
+
+                int _h = PMap.hash(_e);
+                Object n;
+                if (h == _h) {
+                    // Replace element node with collision node
+                    n = new PSet.CollisionNode(h, new Object[]{_e, e});
+                }
+                else {
+                    // Replace element node with a sub-layer node
+                    n = mergeTwo(_e, _h, e, h, dShift + PMap.PREFIX_BIT_SIZE);
+                }
+
+                size++;
+                nodes = PSet.migrateDataToNode(nodes, i, PSet.nodeIndex(nodes, nodeMap, symbol), n);
+                dataMap = PMap.bitmapClear(dataMap, symbol);
+                nodeMap = PMap.bitmapSet(nodeMap, symbol);
+                return true;
+            }
+            else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+                int ni = PSet.nodeIndex(nodes, nodeMap, symbol);
+                Object n = nodes[ni];
+                if (n instanceof PSet.CollisionNode) {
+                    // Collision node
+
+                    PSet.CollisionNode c = (PSet.CollisionNode) n;
+                    if (h == c.h) {
+                        // Collision with existing elements in collision node
+                        PSet.CollisionNode r = c.add(e);
+                        if (r == c) {
+                            return false;
+                        }
+                        nodes[ni] = r;
+                    }
+                    else {
+                        // Replace collision node with a sub-layer node
+                        MutableLayer subNode = new MutableLayer(
+                                c.es.length, 0, 1 << PMap.symbolAtDepth(c.h, dShift + PMap.PREFIX_BIT_SIZE),
+                                new Object[]{c});
+                        subNode.add(e, h, dShift + PMap.PREFIX_BIT_SIZE);
+                        nodes[ni] = subNode;
+                    }
+                    size++;
+                    return true;
+                }
+
+                // Sub-layer node
+
+                MutableLayer s = mutableSubLayer(ni);
+                if (s.add(e, h, dShift + PMap.PREFIX_BIT_SIZE)) {
+                    size++;
+                    return true;
+                }
+                return false;
+            }
+            else {
+                // Element node is free
+
+                size++;
+                nodes = PSet.insert(nodes, PMap.bitmapCountFrom(dataMap, symbol), e);
+                dataMap = PMap.bitmapSet(dataMap, symbol);
+                return true;
+            }
+        }
+
+        // Returns true if the element was removed, otherwise false if
+        // the element does not exist
+        boolean remove(Object e, int h, int dShift) {
+            int symbol = PMap.symbolAtDepth(h, dShift);
+
+            if (PMap.bitmapGet(dataMap, symbol) != 0) {
+                // Prefix conflict with existing element node
+
+                int i = PMap.bitmapCountFrom(dataMap, symbol);
+                if (!nodes[i].equals(e)) {
+                    // Element does not exist
+
+                    return false;
+                }
+
+                // Remove element
+
+                size--;
+                dataMap = PMap.bitmapClear(dataMap, symbol);
+                nodes = PSet.removeAt(nodes, i);
+                return true;
+            }
+            else if (PMap.bitmapGet(nodeMap, symbol) != 0) {
+                int ni = PSet.nodeIndex(nodes, nodeMap, symbol);
+                Object n = nodes[ni];
+                Object remaining;
+                if (n instanceof PSet.CollisionNode) {
+                    // Collision node
+
+                    PSet.CollisionNode c = (PSet.CollisionNode) n;
+                    PSet.CollisionNode r = h != c.h ? c : c.remove(e);
+                    if (r == c) {
+                        // Element does not exist
+
+                        return false;
+                    }
+
+                    if (r.es.length > 1) {
+                        nodes[ni] = r;
+                        size--;
+                        return true;
+                    }
+                    remaining = r.es[0];
+                }
+                else {
+                    // Sub-layer node
+
+                    // @@@ The sub-layer is copied, if frozen, even if no
+                    //     element exists
+                    MutableLayer s = mutableSubLayer(ni);
+                    if (!s.remove(e, h, dShift + PMap.PREFIX_BIT_SIZE)) {
+                        // Element does not exist
+
+                        return false;
+                    }
+
+                    if (s.dataMap == 0 && s.nodes.length == 1 && s.nodes[0] instanceof PSet.CollisionNode) {
+                        // One collision node remaining in child, fold into parent
+                        // to retain collision node count invariant
+                        nodes[ni] = s.nodes[0];
+                    }
+                    if (s.size > 1) {
+                        size--;
+                        return true;
+                    }
+                    remaining = s.nodes[0];
+                }
+
+                // One element node remaining in child, fold into parent
+                // to retain element node count invariant
+                size--;
+                nodes = PSet.migrateNodeToData(nodes, ni, PMap.bitmapCountFrom(dataMap, symbol), remaining);
+                dataMap = PMap.bitmapSet(dataMap, symbol);
+                nodeMap = PMap.bitmapClear(nodeMap, symbol);
+                return true;
+            }
+            else {
+                // Element does not exist
+
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package per;
+
+// A hash strategy that mixes the hash of a key with a seed.
+// Strategies are equal if their seeds are equal
+final class SeededHashStrategy implements HashStrategy {
+    final int seed;
+
+    SeededHashStrategy(int seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public int hash(Object k) {
+        if (k == null) {
+            return 0;
+        }
+        if (k instanceof CharSequence) {
+            return hash((CharSequence) k, seed);
+        }
+        return mix(k.hashCode() ^ seed);
+    }
+
+    // Only the hashes of a CharSequence are extended, the hashes of other
+    // keys are derived from their hash code and so cannot distinguish
+    // keys whose hash codes are equal
+    @Override
+    public int hash(Object k, int level) {
+        if (level == 0) {
+            return hash(k);
+        }
+        if (k instanceof CharSequence) {
+            return hash((CharSequence) k, mix(seed + level * 0x9e3779b9));
+        }
+        return 0;
+    }
+
+    static int hash(CharSequence cs, int seed) {
+        int h = seed ^ cs.length();
+        for (int i = 0; i < cs.length(); i++) {
+            h ^= Integer.rotateLeft(cs.charAt(i) * 0xcc9e2d51, 15) * 0x1b873593;
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        return mix(h);
+    }
+
+    // The finalization mix of MurmurHash3, each bit of the input affects
+    // each bit of the output with a probability of about 1/2
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SeededHashStrategy && seed == ((SeededHashStrategy) o).seed;
+    }
+
+    @Override
+    public int hashCode() {
+        return seed;
+    }
+
+    @Override
+    public String toString() {
+        return "seeded(" + seed + ")";
+    }
+}
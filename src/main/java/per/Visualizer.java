@@ -30,12 +30,11 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -99,6 +98,29 @@ public class Visualizer {
         Browser.openInBrowser("x.svg");
     }
 
+    // Visualizes versions of a map, highlighting the nodes they share
+    public static void visualizeVersions(PMap<?, ?>... m) {
+        try {
+            new DotWriter().writeVersions("x", new PrintWriter(new FileOutputStream("x.dot")), m);
+            Dot.dotToSvg(new FileInputStream("x.dot"),
+                         new FileOutputStream("x.svg"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Browser.openInBrowser("x.svg");
+    }
+
+    public static void visualize(DotWriter dw, PMap<?, ?>... m) {
+        try {
+            dw.write("x", new PrintWriter(new FileOutputStream("x.dot")), m);
+            Dot.dotToSvg(new FileInputStream("x.dot"),
+                         new FileOutputStream("x.svg"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Browser.openInBrowser("x.svg");
+    }
+
     static String quote(String s) {
         return "\"" + s + "\"";
     }
@@ -194,47 +216,297 @@ public class Visualizer {
         void traverse(MapNode parent) {
             PMap<?, ?> m = parent.n;
 
-            ByteBuffer bb = ByteBuffer.allocate(4);
-            bb.order(ByteOrder.nativeOrder());
-            BitSet b = BitSet.valueOf(bb.putInt(0, m.bitmap));
-
-            int h = -1;
             int d = parent.d + 1;
-            for (int i = 0; i < m.nodes.length; i += 2) {
-                h = b.nextSetBit(h + 1);
+            int bitmap = m.dataMap | m.nodeMap;
+            for (int b = bitmap; b != 0; b &= b - 1) {
+                int h = Integer.numberOfTrailingZeros(b);
                 int p = (h << (5 * parent.d)) | parent.p;
 
                 Node c;
-                Object k = m.nodes[i];
-                if (k == PMap.SUB_LAYER_NODE) {
-                    // Sub-layer node
-                    MapNode sn = new MapNode(d, p, m.nodes[i + 1]);
-                    c = sn;
-                    traverse(sn);
+                if (PMap.bitmapGet(m.dataMap, h) != 0) {
+                    // Mapping node
+                    int i = PMap.dataIndex(m.dataMap, h);
+                    String n = parent.name() + ".key." + i;
+                    c = new KeyNode(n, d, p, m.nodes[i]);
+                    NamedNode vn = new NamedNode(n + ".value", d, m.nodes[i + 1]);
+                    addEdge(vn, c);
                 }
-                else if (k == PMap.COLLISION_NODE) {
-                    // Collision node
-                    String n = parent.name() + ".collision." + i;
-                    c = new CollisionNode(n, d, p, m.nodes[i + 1]);
-                    Object[] entries = ((PMap.CollisionNode) m.nodes[i + 1]).ms;
+                else {
+                    int i = PMap.nodeIndex(m.nodes, m.nodeMap, h);
+                    Object o = m.nodes[i];
+                    if (o instanceof PMap) {
+                        // Sub-layer node
+                        MapNode sn = new MapNode(d, p, o);
+                        c = sn;
+                        traverse(sn);
+                    }
+                    else {
+                        // Collision node
+                        String n = parent.name() + ".collision." + i;
+                        c = new CollisionNode(n, d, p, o);
+                        Object[] entries = ((PMap.CollisionNode) o).ms;
+
+                        for (int e = 0; e < entries.length; e += 2) {
+                            NamedNode kn = new NamedNode(n + ".key." + e, d, entries[e], "box");
+                            addEdge(kn, c);
+                            NamedNode vn = new NamedNode(n + ".value." + e, d, entries[e + 1]);
+                            addEdge(vn, kn);
+                        }
+                    }
+                }
+                addEdge(c, parent);
+            }
+        }
+    }
 
-                    for (int e = 0; e < entries.length; e += 2) {
-                        NamedNode kn = new NamedNode(n + ".key." + e, d, entries[e], "box");
-                        addEdge(kn, c);
-                        NamedNode vn = new NamedNode(n + ".value." + e, d, entries[e + 1]);
-                        addEdge(vn, kn);
+    // Writes maps in the DOT format as they are traversed, without
+    // materializing the graph, so the output, and the time to produce
+    // it, is bounded by what is drawn rather than the size of the maps.
+    // Layers deeper than the maximum depth, and sub-layer and collision
+    // nodes not sampled, are summarized as a single node per layer
+    // reporting the number of nodes and mappings summarized.  Likewise
+    // the mapping nodes of a layer, or a collision node, with more than
+    // the maximum number of mappings.
+    // Layers shared between the maps are written once.
+    public static final class DotWriter {
+        int maxDepth = PMap.MAX_EXTENDED_LAYERS;
+        int maxSampled = 32;
+        int maxMappings = 32;
+        final Set<Object> written = Collections.newSetFromMap(new IdentityHashMap<>());
+        // When writing versions, the versions, as a bit set, that reference
+        // each layer and collision node
+        Map<Object, Long> owners;
+
+        // The number of layers to draw, the root layer is depth 0
+        public DotWriter maxDepth(int maxDepth) {
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        // The maximum number of sub-layer and collision nodes of a layer
+        // to draw, sampled evenly across the symbols of the layer
+        public DotWriter maxSampled(int maxSampled) {
+            if (maxSampled < 1)
+                throw new IllegalArgumentException();
+            this.maxSampled = maxSampled;
+            return this;
+        }
+
+        // The maximum number of mappings of a layer, or collision node,
+        // to draw
+        public DotWriter maxMappings(int maxMappings) {
+            this.maxMappings = maxMappings;
+            return this;
+        }
 
+        public void write(String graphName, PrintWriter w, PMap<?, ?>... ms) {
+            w.println(String.format("digraph %s {", quote(graphName)));
+            for (PMap<?, ?> m : ms) {
+                if (written.add(m)) {
+                    MapNode root = new MapNode(0, 0, m);
+                    root.writeNode(w);
+                    layer(root, w);
+                }
+            }
+            w.println("}");
+            w.flush();
+            written.clear();
+        }
+
+        // Writes versions of a map, highlighting the nodes they share.
+        // A layer or collision node referenced by more than one version
+        // is drawn once, collapsed, and colored by the versions sharing
+        // it.  Each version is labelled with the number and estimated
+        // bytes of the nodes it does not share.
+        public void writeVersions(String graphName, PrintWriter w, PMap<?, ?>... ms) {
+            if (ms.length > Long.SIZE)
+                throw new IllegalArgumentException();
+
+            owners = new IdentityHashMap<>();
+            for (int v = 0; v < ms.length; v++) {
+                own(ms[v], 1L << v);
+            }
+            try {
+                w.println(String.format("digraph %s {", quote(graphName)));
+                for (int v = 0; v < ms.length; v++) {
+                    PMap<?, ?> m = ms[v];
+                    long[] unique = new long[2];
+                    unique(m, unique);
+                    Map<String, String> label = new LinkedHashMap<>();
+                    label.put("version " + v, null);
+                    label.put("unique nodes", Long.toString(unique[0]));
+                    label.put("unique bytes", Long.toString(unique[1]));
+                    NamedNode vn = new NamedNode("version." + v, 0, writeLabels(label), "plaintext");
+                    vn.writeNode(w);
+
+                    MapNode root = new MapNode(0, 0, m);
+                    if (isShared(m)) {
+                        writeShared(root, vn, w);
+                    }
+                    else {
+                        writeChild(root, vn, w);
+                        layer(root, w);
                     }
                 }
-                else {
+                w.println("}");
+                w.flush();
+            }
+            finally {
+                written.clear();
+                owners = null;
+            }
+        }
+
+        // Marks the nodes referenced by a version.  The nodes of a sub-layer
+        // already marked by another version are shared and need not be
+        // marked
+        void own(Object n, long version) {
+            Long o = owners.get(n);
+            owners.put(n, o == null ? version : o | version);
+            if (o == null && n instanceof PMap) {
+                PMap<?, ?> m = (PMap<?, ?>) n;
+                for (int i = Integer.bitCount(m.dataMap) * 2; i < m.nodes.length; i++) {
+                    own(m.nodes[i], version);
+                }
+            }
+        }
+
+        boolean isShared(Object n) {
+            return Long.bitCount(owners.get(n)) > 1;
+        }
+
+        // Counts the nodes, and their estimated bytes, not shared with
+        // another version
+        void unique(Object n, long[] unique) {
+            if (isShared(n))
+                return;
+
+            unique[0]++;
+            unique[1] += PMapStats.nodeBytes(n);
+            if (n instanceof PMap) {
+                PMap<?, ?> m = (PMap<?, ?>) n;
+                for (int i = Integer.bitCount(m.dataMap) * 2; i < m.nodes.length; i++) {
+                    unique(m.nodes[i], unique);
+                }
+            }
+        }
+
+        // Writes a collapsed node for a shared node
+        void writeShared(Node n, Node parent, PrintWriter w) {
+            Object o = n instanceof MapNode ? ((MapNode) n).n : ((CollisionNode) n).n;
+            String name = "shared." + System.identityHashCode(o);
+            if (written.add(o)) {
+                long versions = owners.get(o);
+                StringBuilder sb = new StringBuilder("shared by");
+                for (long b = versions; b != 0; b &= b - 1) {
+                    sb.append(' ').append(Long.numberOfTrailingZeros(b));
+                }
+                Map<String, String> label = new LinkedHashMap<>();
+                label.put(sb.toString(), null);
+                label.put("prefix", prefixString(n.p, n.d));
+                label.put("mappings", Integer.toString(PMap.nodeSize(o)));
+
+                Map<String, String> attrs = new LinkedHashMap<>();
+                attrs.put("shape", "box3d");
+                attrs.put("style", "filled");
+                attrs.put("fillcolor", quote(SHARED_COLORS[(int) (versions % SHARED_COLORS.length)]));
+                attrs.put("label", quote(writeLabels(label)));
+                w.print(quote(name));
+                w.println(" [");
+                writeAttributes(attrs, w);
+                w.println("];");
+            }
+            writeEdge(parent.name(), name, w);
+        }
+
+        static final String[] SHARED_COLORS = {
+                "lightblue", "palegreen", "khaki", "plum", "lightsalmon", "lightcyan", "wheat"
+        };
+
+        void layer(MapNode parent, PrintWriter w) {
+            PMap<?, ?> m = parent.n;
+            int d = parent.d + 1;
+
+            int dataCount = Integer.bitCount(m.dataMap);
+            if (dataCount > maxMappings) {
+                summarize(parent, ".mappings", dataCount + " mappings", w);
+            }
+            else {
+                for (int b = m.dataMap; b != 0; b &= b - 1) {
                     // Mapping node
+                    int h = Integer.numberOfTrailingZeros(b);
+                    int i = PMap.dataIndex(m.dataMap, h);
                     String n = parent.name() + ".key." + i;
-                    c = new KeyNode(n, d, p, k);
-                    NamedNode vn = new NamedNode(n + ".value", d, m.nodes[i + 1]);
-                    addEdge(vn, c);
+                    KeyNode kn = new KeyNode(n, d, (h << (5 * parent.d)) | parent.p, m.nodes[i]);
+                    writeChild(kn, parent, w);
+                    writeChild(new NamedNode(n + ".value", d, m.nodes[i + 1]), kn, w);
                 }
-                addEdge(c, parent);
             }
+
+            int nodeCount = Integer.bitCount(m.nodeMap);
+            int step = (nodeCount + maxSampled - 1) / maxSampled;
+            int summarized = 0;
+            int summarizedMappings = 0;
+            int j = 0;
+            for (int b = m.nodeMap; b != 0; b &= b - 1, j++) {
+                int h = Integer.numberOfTrailingZeros(b);
+                int i = PMap.nodeIndex(m.nodes, m.nodeMap, h);
+                Object o = m.nodes[i];
+                boolean shared = owners != null && isShared(o);
+                if (!shared && (d >= maxDepth || j % step != 0)) {
+                    summarized++;
+                    summarizedMappings += PMap.nodeSize(o);
+                    continue;
+                }
+
+                int p = (h << (5 * parent.d)) | parent.p;
+                if (shared) {
+                    // Shared node
+                    writeShared(o instanceof PMap
+                                ? new MapNode(d, p, o)
+                                : new CollisionNode(parent.name() + ".collision." + i, d, p, o),
+                                parent, w);
+                }
+                else if (o instanceof PMap) {
+                    // Sub-layer node
+                    MapNode sn = new MapNode(d, p, o);
+                    if (written.add(sn.n)) {
+                        writeChild(sn, parent, w);
+                        layer(sn, w);
+                    }
+                    else {
+                        writeEdge(sn, parent, w);
+                    }
+                }
+                else {
+                    // Collision node
+                    CollisionNode cn = new CollisionNode(parent.name() + ".collision." + i, d, p, o);
+                    writeChild(cn, parent, w);
+                    Object[] entries = cn.n.ms;
+                    if (entries.length / 2 > maxMappings) {
+                        summarize(cn, ".mappings", entries.length / 2 + " mappings", w);
+                        continue;
+                    }
+                    for (int e = 0; e < entries.length; e += 2) {
+                        NamedNode kn = new NamedNode(cn.name() + ".key." + e, d, entries[e], "box");
+                        writeChild(kn, cn, w);
+                        writeChild(new NamedNode(cn.name() + ".value." + e, d, entries[e + 1]), kn, w);
+                    }
+                }
+            }
+            if (summarized > 0) {
+                summarize(parent, ".nodes",
+                          summarized + " nodes\\n" + summarizedMappings + " mappings", w);
+            }
+        }
+
+        static void summarize(Node parent, String suffix, String label, PrintWriter w) {
+            writeChild(new NamedNode(parent.name() + suffix, parent.d + 1, label, "note"), parent, w);
+        }
+
+        static void writeChild(Node c, Node p, PrintWriter w) {
+            c.writeNode(w);
+            writeEdge(c, p, w);
         }
     }
 
@@ -281,8 +553,9 @@ public class Visualizer {
             if (d > 0) {
                 label.put("prefix", prefixString(p, d));
             }
-            label.put("bitmap", toBinaryString(n.bitmap));
-            label.put("size", Integer.toString(n.nodes.length / 2));
+            label.put("dataMap", toBinaryString(n.dataMap));
+            label.put("nodeMap", toBinaryString(n.nodeMap));
+            label.put("size", Integer.toString(Integer.bitCount(n.dataMap | n.nodeMap)));
 
             attrs.put("label", quote(writeLabels(label)));
             return attrs;
@@ -24,14 +24,53 @@
  */
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
+import per.HashStrategy;
+import per.Int2IntPMap;
+import per.MappedPMap;
+import per.IntPMap;
+import per.LongPMap;
 import per.PMap;
 import per.PMapBuilder;
+import per.PMapCodec;
+import per.PMapInterner;
+import per.PMapRef;
+import per.PMapStats;
+import per.PSet;
 import per.Visualizer;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PMapTest {
 
@@ -117,6 +156,51 @@ public class PMapTest {
         Visualizer.visualize(m);
     }
 
+    @Test
+    public void largeVisualization() {
+        PMap<Object, Object> m = PMap.of(b -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                b.put(i, i);
+            }
+        });
+        StringWriter sw = new StringWriter();
+        new Visualizer.DotWriter().maxDepth(2).maxSampled(4).maxMappings(8)
+                .write("large", new PrintWriter(sw), m, m.put(-1, -1));
+        String dot = sw.toString();
+        Assert.assertTrue(dot.startsWith("digraph"));
+        Assert.assertTrue(dot.trim().endsWith("}"));
+        Assert.assertTrue(dot.contains(" mappings"));
+        Assert.assertTrue(dot.length() < 100_000);
+
+        PMap<Object, Object> c = PMap.empty();
+        for (int i = 0; i < 16; i++) {
+            c = c.put(new IntKey(i, 0), i).put(i, i);
+        }
+        Visualizer.visualize(new Visualizer.DotWriter().maxMappings(4), c);
+    }
+
+    @Test
+    public void sharingVisualization() {
+        PMap<Object, Object> m = PMap.empty();
+        for (int i = 0; i < 10_000; i++) {
+            m = m.put(i, i);
+        }
+        PMap<Object, Object> pm = m.put(-1, -1);
+        PMap<Object, Object> rm = m.remove(5000);
+        StringWriter sw = new StringWriter();
+        new Visualizer.DotWriter().writeVersions("versions", new PrintWriter(sw), m, pm, rm);
+        String dot = sw.toString();
+        Assert.assertTrue(dot.contains("shared by 0 1 2"));
+        String nl = System.lineSeparator();
+        Assert.assertTrue(dot.contains("shared by 0 1" + nl) || dot.contains("shared by 0 2" + nl));
+
+        PMapStats s = pm.stats(m);
+        long unique = Math.round((1 - s.sharedFraction()) * (s.layerCount() + s.collisionNodeCount()));
+        Assert.assertTrue(dot.contains("version 1" + nl + "unique nodes: " + unique + nl));
+
+        Visualizer.visualizeVersions(m.remove(1), m, m.put(-1, -1));
+    }
+
     @Test
     public void propertiesAndBuilding() {
         Map<Object, Object> p = System.getProperties();
@@ -153,6 +237,1410 @@ public class PMapTest {
         }
     }
 
+    @Test
+    public void spliterator() {
+        PMap<Object, Object> m = PMap.empty();
+        for (int i = 0; i < 10_000; i++) {
+            m = m.put(i, i);
+        }
+        for (int i = 0; i < 8; i++) {
+            m = m.put(new IntKey(i, 7), i);
+        }
+        // Replace existing values
+        m = m.put(0, 0).put(new IntKey(0, 7), 0);
+        Assert.assertEquals(10_008, m.size());
+
+        Assert.assertEquals(m.size(), m.entries().parallelStream().count());
+        Assert.assertEquals(m.size(), m.entries().stream().map(Map.Entry::getKey).distinct().count());
+        Assert.assertEquals(m.size(), m.entries().size());
+
+        long sum = m.entries().parallelStream().mapToLong(e -> (Integer) e.getValue()).sum();
+        Assert.assertEquals(10_000L * 9_999 / 2 + 7 * 8 / 2, sum);
+
+        assertSplitsExactly(m.spliterator());
+    }
+
+    static void assertSplitsExactly(Spliterator<?> s) {
+        long size = s.estimateSize();
+        Spliterator<?> prefix = s.trySplit();
+        if (prefix == null) {
+            long[] count = new long[1];
+            s.forEachRemaining(e -> count[0]++);
+            Assert.assertEquals(size, count[0]);
+        }
+        else {
+            Assert.assertEquals(size, prefix.estimateSize() + s.estimateSize());
+            assertSplitsExactly(prefix);
+            assertSplitsExactly(s);
+        }
+    }
+
+    @Test
+    public void withMutations() {
+        PMap<Object, Object> base = PMap.empty();
+        for (int i = 0; i < 2_000; i++) {
+            base = base.put(i, i);
+        }
+        for (int i = 0; i < 4; i++) {
+            base = base.put(new IntKey(i, 3_000), i);
+        }
+        Map<Object, Object> expectedBase = toMap(base);
+
+        PMap<Object, Object> expected = base;
+        for (int i = 2_000; i < 3_000; i++) {
+            expected = expected.put(i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            expected = expected.put(i, -i);
+        }
+        for (int i = 100; i < 300; i++) {
+            expected = expected.remove(i);
+        }
+        expected = expected.remove(new IntKey(0, 3_000))
+                .put(new IntKey(4, 3_000), 4)
+                .put(new IntKey(5, 5_000), 5)
+                .put(new IntKey(6, 5_000), 6);
+
+        PMap<Object, Object> m = base.withMutations(b -> {
+            for (int i = 2_000; i < 3_000; i++) {
+                b.put(i, i);
+            }
+            for (int i = 0; i < 100; i++) {
+                b.put(i, -i);
+            }
+            for (int i = 100; i < 300; i++) {
+                b.remove(i);
+            }
+            b.remove(new IntKey(0, 3_000))
+                    .put(new IntKey(4, 3_000), 4)
+                    .put(new IntKey(5, 5_000), 5)
+                    .put(new IntKey(6, 5_000), 6);
+        });
+
+        Assert.assertEquals(expected.size(), m.size());
+        Assert.assertEquals(toMap(expected), toMap(m));
+        // The base is unmodified
+        Assert.assertEquals(expectedBase, toMap(base));
+        Assert.assertEquals(expectedBase.size(), base.size());
+
+        // Remove all mappings
+        PMap<Object, Object> empty = m.withMutations(b -> toMap(m).keySet().forEach(b::remove));
+        Assert.assertEquals(0, empty.size());
+        Assert.assertEquals(0, empty.entries().stream().count());
+    }
+
+    @Test
+    public void randomOperations() {
+        randomOperations(PMap.empty());
+    }
+
+    @Test
+    public void randomOperationsCachingHashes() {
+        randomOperations(PMap.emptyCachingHashes());
+    }
+
+    static void randomOperations(PMap<Object, Object> empty) {
+        Random r = new Random(42);
+        Map<Object, Object> expected = new HashMap<>();
+        PMap<Object, Object> m = empty;
+        for (int i = 0; i < 50_000; i++) {
+            // Keys with hashes from a small range, some of which collide
+            int ki = r.nextInt(2_000);
+            Object k = new IntKey(ki, ki % 700);
+            if (r.nextInt(3) == 0) {
+                expected.remove(k);
+                m = m.remove(k);
+            }
+            else {
+                expected.put(k, i);
+                m = m.put(k, i);
+            }
+            Assert.assertEquals(Optional.ofNullable(expected.get(k)), m.get(k));
+        }
+        Assert.assertEquals(expected.size(), m.size());
+        Assert.assertEquals(expected, toMap(m));
+
+        PMap<Object, Object> fm = m;
+        PMap<Object, Object> b = empty.withMutations(pb -> fm.forEach(pb::put));
+        Assert.assertEquals(expected.size(), b.size());
+        Assert.assertEquals(expected, toMap(b));
+        for (Object k : expected.keySet()) {
+            Assert.assertEquals(Optional.of(expected.get(k)), b.get(k));
+        }
+    }
+
+    @Test
+    public void primitiveSpecializations() {
+        Random r = new Random(42);
+        Map<Integer, Integer> expectedInts = new HashMap<>();
+        Map<Long, Integer> expectedLongs = new HashMap<>();
+        IntPMap<Integer> im = IntPMap.empty();
+        LongPMap<Integer> lm = LongPMap.empty();
+        Int2IntPMap iim = Int2IntPMap.empty();
+        for (int i = 0; i < 50_000; i++) {
+            // Keys sharing long prefixes, at both ends of the range
+            int ki = r.nextInt(4_000) << (r.nextBoolean() ? 0 : 20);
+            long kl = ((long) ki << 32) | (ki >>> 12);
+            if (r.nextInt(3) == 0) {
+                expectedInts.remove(ki);
+                expectedLongs.remove(kl);
+                im = im.remove(ki);
+                lm = lm.remove(kl);
+                iim = iim.remove(ki);
+            }
+            else {
+                expectedInts.put(ki, i);
+                expectedLongs.put(kl, i);
+                im = im.put(ki, i);
+                lm = lm.put(kl, i);
+                iim = iim.put(ki, i);
+            }
+            Assert.assertEquals(expectedInts.get(ki), im.get(ki));
+            Assert.assertEquals(expectedLongs.get(kl), lm.get(kl));
+            Assert.assertEquals(expectedInts.getOrDefault(ki, -1).intValue(), iim.getOrDefault(ki, -1));
+            Assert.assertEquals(expectedInts.containsKey(ki), iim.containsKey(ki));
+        }
+        Assert.assertEquals(expectedInts.size(), im.size());
+        Assert.assertEquals(expectedLongs.size(), lm.size());
+        Assert.assertEquals(expectedInts.size(), iim.size());
+
+        Map<Integer, Integer> ai = new HashMap<>();
+        im.forEach(ai::put);
+        Assert.assertEquals(expectedInts, ai);
+        Map<Long, Integer> al = new HashMap<>();
+        lm.forEach(al::put);
+        Assert.assertEquals(expectedLongs, al);
+        Map<Integer, Integer> aii = new HashMap<>();
+        iim.forEach(aii::put);
+        Assert.assertEquals(expectedInts, aii);
+
+        // Replacing a value with itself does not copy
+        int k = expectedInts.keySet().iterator().next();
+        Assert.assertSame(iim, iim.put(k, iim.getOrDefault(k, 0)));
+        Assert.assertSame(im, im.put(k, im.get(k)));
+    }
+
+    @Test
+    public void union() {
+        union(PMap.empty(), PMap.empty());
+        union(PMap.emptyCachingHashes(), PMap.emptyCachingHashes());
+        union(PMap.empty(), PMap.emptyCachingHashes());
+    }
+
+    static void union(PMap<Object, Integer> emptyA, PMap<Object, Integer> emptyB) {
+        Random r = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            // Keys with hashes from a small range, some of which collide
+            int range = 1 + r.nextInt(3_000);
+            PMap<Object, Integer> a = emptyA;
+            PMap<Object, Integer> b = emptyB;
+            for (int i = 0, n = r.nextInt(range); i < n; i++) {
+                int ki = r.nextInt(range);
+                a = a.put(new IntKey(ki, ki % 700), ki);
+            }
+            for (int i = 0, n = r.nextInt(range); i < n; i++) {
+                int ki = r.nextInt(range);
+                b = b.put(new IntKey(ki, ki % 700), r.nextInt(range));
+            }
+            Map<Object, Integer> expected = toMap(a);
+            toMap(b).forEach((k, v) -> expected.merge(k, v, Math::max));
+
+            PMap<Object, Integer> u = a.union(b, Math::max);
+            Assert.assertEquals(expected.size(), u.size());
+            Assert.assertEquals(expected, toMap(u));
+            Assert.assertEquals(expected.size(), u.entries().stream().count());
+
+            // The shape is canonical, removing all mappings folds every
+            // node into an empty map
+            for (Object k : expected.keySet()) {
+                u = u.remove(k);
+                Assert.assertFalse(u.containsKey(k));
+            }
+            Assert.assertEquals(0, u.size());
+            Assert.assertEquals(0, u.entries().stream().count());
+
+            Map<Object, Integer> expectedPutAll = toMap(a);
+            expectedPutAll.putAll(toMap(b));
+            Assert.assertEquals(expectedPutAll, toMap(a.putAll(b)));
+        }
+    }
+
+    @Test
+    public void unionSharing() {
+        PMap<Object, Object> m = PMap.empty();
+        for (int i = 0; i < 10_000; i++) {
+            m = m.put(new IntKey(i, i % 7_000), i);
+        }
+
+        Assert.assertSame(m, m.putAll(m));
+        Assert.assertSame(m, m.putAll(PMap.empty()));
+        Assert.assertSame(m, PMap.empty().putAll(m));
+
+        // Nodes in only one of the maps, or identical in both, are shared
+        PMap<Object, Object> added = m.put(new IntKey(-1, -1), -1);
+        Assert.assertSame(added, m.putAll(added));
+        Assert.assertSame(added, added.putAll(m));
+        PMap<Object, Object> replaced = m.put(new IntKey(1, 1), "one");
+        Assert.assertSame(replaced, m.putAll(replaced));
+        Assert.assertSame(m, replaced.putAll(m));
+        Assert.assertSame(replaced, m.union(replaced, (x, y) -> y));
+        Assert.assertSame(m, m.union(replaced, (x, y) -> x));
+    }
+
+    @Test
+    public void diff() {
+        Random r = new Random(42);
+        PMap<Object, Object> m = PMap.empty();
+        for (int round = 0; round < 200; round++) {
+            // Keys with hashes from a small range, some of which collide
+            PMap<Object, Object> tm = m;
+            for (int i = 0, n = r.nextInt(round < 100 ? 100 : 5); i < n; i++) {
+                int ki = r.nextInt(3_000);
+                Object k = new IntKey(ki, ki % 700);
+                tm = r.nextInt(3) == 0 ? tm.remove(k) : tm.put(k, r.nextInt(3));
+            }
+
+            Map<Object, Object> before = toMap(m);
+            Map<Object, Object> after = toMap(tm);
+            Map<Object, Object> added = new HashMap<>(after);
+            added.keySet().removeAll(before.keySet());
+            Map<Object, Object> removed = new HashMap<>(before);
+            removed.keySet().removeAll(after.keySet());
+            Map<Object, Object> changed = new HashMap<>();
+            before.forEach((k, v) -> {
+                if (after.containsKey(k) && !after.get(k).equals(v)) {
+                    changed.put(k, v + "->" + after.get(k));
+                }
+            });
+
+            Map<Object, Object> actualAdded = new HashMap<>();
+            Map<Object, Object> actualRemoved = new HashMap<>();
+            Map<Object, Object> actualChanged = new HashMap<>();
+            m.diff(tm, new PMap.DiffListener<Object, Object>() {
+                @Override
+                public void added(Object k, Object v) {
+                    Assert.assertNull(actualAdded.put(k, v));
+                }
+
+                @Override
+                public void removed(Object k, Object v) {
+                    Assert.assertNull(actualRemoved.put(k, v));
+                }
+
+                @Override
+                public void changed(Object k, Object v, Object thatV) {
+                    Assert.assertNull(actualChanged.put(k, v + "->" + thatV));
+                }
+            });
+            Assert.assertEquals(added, actualAdded);
+            Assert.assertEquals(removed, actualRemoved);
+            Assert.assertEquals(changed, actualChanged);
+
+            m = tm;
+        }
+    }
+
+    @Test
+    public void diffSharing() {
+        CountingKey[] keys = new CountingKey[100_000];
+        PMap<Object, Object> m = PMap.empty();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new CountingKey(i, i);
+            m = m.put(keys[i], i);
+        }
+        PMap<Object, Object> tm = m.put(keys[1], "one").remove(keys[2]).put(new CountingKey(-1, -1), -1);
+        for (CountingKey k : keys) {
+            k.equalsCount = 0;
+        }
+
+        int[] counts = new int[3];
+        m.diff(tm, new PMap.DiffListener<Object, Object>() {
+            @Override
+            public void added(Object k, Object v) {
+                counts[0]++;
+            }
+
+            @Override
+            public void removed(Object k, Object v) {
+                counts[1]++;
+            }
+
+            @Override
+            public void changed(Object k, Object v, Object thatV) {
+                counts[2]++;
+            }
+        });
+        Assert.assertArrayEquals(new int[]{1, 1, 1}, counts);
+
+        // Only the nodes on the paths to the differences are traversed
+        int equalsCount = 0;
+        for (CountingKey k : keys) {
+            equalsCount += k.equalsCount;
+        }
+        Assert.assertTrue(equalsCount < 1_000);
+    }
+
+    @Test
+    public void equalsAndHashCode() {
+        Random r = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            // Keys with hashes from a small range, some of which collide,
+            // put in different orders and with removals
+            int range = 1 + r.nextInt(3_000);
+            Map<Object, Object> expected = new HashMap<>();
+            PMap<Object, Object> a = PMap.empty();
+            for (int i = 0, n = r.nextInt(range); i < n; i++) {
+                int ki = r.nextInt(range);
+                Object k = new IntKey(ki, ki % 700);
+                if (r.nextInt(4) == 0) {
+                    expected.remove(k);
+                    a = a.remove(k);
+                }
+                else {
+                    expected.put(k, ki);
+                    a = a.put(k, ki);
+                }
+            }
+            List<Object> keys = new ArrayList<>(expected.keySet());
+            Collections.shuffle(keys, r);
+            PMap<Object, Object> b = PMap.emptyCachingHashes();
+            for (Object k : keys) {
+                b = b.put(k, expected.get(k));
+            }
+
+            Assert.assertEquals(a, b);
+            Assert.assertEquals(b, a);
+            Assert.assertEquals(a, PMap.of(pb -> keys.forEach(k -> pb.put(k, expected.get(k)))));
+            Assert.assertEquals(expected.hashCode(), a.hashCode());
+            Assert.assertEquals(expected.hashCode(), b.hashCode());
+
+            if (!keys.isEmpty()) {
+                Object k = keys.get(r.nextInt(keys.size()));
+                PMap<Object, Object> changed = b.put(k, -1);
+                Assert.assertNotEquals(a, changed);
+                Assert.assertNotEquals(changed, a);
+                Assert.assertNotEquals(a, b.remove(k));
+                Assert.assertEquals(a, changed.put(k, expected.get(k)));
+            }
+        }
+
+        Assert.assertEquals(PMap.empty(), PMap.emptyCachingHashes());
+        Assert.assertNotEquals(PMap.empty(), new HashMap<>());
+    }
+
+    @Test
+    public void ofParallel() {
+        Random r = new Random(42);
+        for (int size : new int[]{0, 1, 2, 33, 1_000, 100_000}) {
+            // Keys with hashes from a small range, some of which collide,
+            // and some of which are duplicated
+            List<Map.Entry<Object, Object>> entries = new ArrayList<>();
+            PMap<Object, Object> expected = PMap.empty();
+            for (int i = 0; i < size; i++) {
+                int ki = r.nextInt(Math.max(1, size / 2));
+                Object k = new IntKey(ki, ki % 700);
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(k, i));
+                expected = expected.put(k, i);
+            }
+
+            PMap<Object, Object> m = PMap.ofParallel(entries);
+            Assert.assertEquals(expected.size(), m.size());
+            Assert.assertEquals(toMap(expected), toMap(m));
+            Assert.assertEquals(expected, m);
+            assertSplitsExactly(m.spliterator());
+        }
+
+        Map<Object, Object> hm = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            hm.put(i, Integer.toString(i));
+        }
+        Assert.assertEquals(hm, toMap(PMap.ofParallel(hm.entrySet())));
+    }
+
+    @Test
+    public void iterators() {
+        Random r = new Random(42);
+        for (int size : new int[]{0, 1, 2, 33, 10_000}) {
+            // Keys with hashes from a small range, some of which collide
+            PMap<Object, Object> m = PMap.empty();
+            for (int i = 0; i < size; i++) {
+                int ki = r.nextInt(size);
+                m = m.put(new IntKey(ki, ki % 700), ki);
+            }
+
+            List<Object> expectedKeys = new ArrayList<>();
+            List<Object> expectedValues = new ArrayList<>();
+            m.forEach((k, v) -> {
+                expectedKeys.add(k);
+                expectedValues.add(v);
+            });
+
+            // Same order as forEach
+            List<Object> keys = new ArrayList<>();
+            m.keyIterator().forEachRemaining(keys::add);
+            Assert.assertEquals(expectedKeys, keys);
+            List<Object> values = new ArrayList<>();
+            m.valueIterator().forEachRemaining(values::add);
+            Assert.assertEquals(expectedValues, values);
+            Iterator<Map.Entry<Object, Object>> i = m.iterator();
+            for (int j = 0; j < expectedKeys.size(); j++) {
+                Assert.assertTrue(i.hasNext());
+                Map.Entry<Object, Object> e = i.next();
+                Assert.assertEquals(expectedKeys.get(j), e.getKey());
+                Assert.assertEquals(expectedValues.get(j), e.getValue());
+            }
+            Assert.assertFalse(i.hasNext());
+            try {
+                i.next();
+                Assert.fail();
+            }
+            catch (NoSuchElementException e) {
+            }
+        }
+    }
+
+    @Test
+    public void asMap() {
+        PMap<Object, Object> m = PMap.empty();
+        for (int i = 0; i < 10_000; i++) {
+            m = m.put(new IntKey(i, i % 7_000), i);
+        }
+        Map<Object, Object> expected = toMap(m);
+
+        Map<Object, Object> view = m.asMap();
+        Assert.assertEquals(expected, view);
+        Assert.assertEquals(view, expected);
+        Assert.assertEquals(expected.hashCode(), view.hashCode());
+        Assert.assertEquals(expected.size(), view.size());
+        Assert.assertEquals(expected.keySet(), view.keySet());
+        Assert.assertEquals(new HashSet<>(expected.values()), new HashSet<>(view.values()));
+        Assert.assertEquals(expected.entrySet(), view.entrySet());
+        Assert.assertEquals(m.put(new IntKey(1, 1), 1).asMap(), view);
+
+        Assert.assertEquals(1, view.get(new IntKey(1, 1)));
+        Assert.assertNull(view.get(new IntKey(-1, -1)));
+        Assert.assertNull(view.get("not a key"));
+        Assert.assertEquals("default", view.getOrDefault(new IntKey(-1, -1), "default"));
+        Assert.assertTrue(view.containsKey(new IntKey(7_001, 1)));
+        Assert.assertTrue(view.keySet().contains(new IntKey(7_001, 1)));
+        Assert.assertTrue(view.entrySet().contains(Map.entry(new IntKey(7_001, 1), 7_001)));
+        Assert.assertFalse(view.entrySet().contains(Map.entry(new IntKey(7_001, 1), 0)));
+
+        try {
+            view.put(new IntKey(-1, -1), -1);
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+        }
+        try {
+            view.remove(new IntKey(1, 1));
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+        }
+        Assert.assertEquals(expected, view);
+    }
+
+    @Test
+    public void mappedImage() throws IOException {
+        // Strings of "Aa" and "BB", which have the same hash code, collide
+        PMap<String, byte[]> m = PMap.empty();
+        for (int i = 0; i < 10_000; i++) {
+            String k = Integer.toBinaryString(i).replace("0", "Aa").replace("1", "BB");
+            m = m.put(k, k.getBytes(StandardCharsets.UTF_8));
+            m = m.put(Integer.toString(i), new byte[i % 3]);
+        }
+        PMap<Long, Integer> lm = PMap.empty();
+        for (long i = 0; i < 10_000; i++) {
+            lm = lm.put(i << 32, (int) i);
+        }
+
+        Path p = Files.createTempFile("pmap", ".image");
+        try {
+            MappedPMap.write(m, MappedPMap.STRING, MappedPMap.BYTES, p);
+            MappedPMap<String, byte[]> mm = MappedPMap.open(p, MappedPMap.STRING, MappedPMap.BYTES);
+            Assert.assertEquals(m.size(), mm.size());
+            m.forEach((k, v) -> Assert.assertArrayEquals(v, mm.get(k)));
+            Assert.assertNull(mm.get("AaAaBBAaAaAaAaAaAaAaAaAaAaAaAaAaAaAaAa"));
+            Assert.assertNull(mm.get("missing"));
+            Assert.assertFalse(mm.containsKey("missing"));
+            List<String> keys = new ArrayList<>();
+            mm.forEach((k, v) -> keys.add(k));
+            Assert.assertEquals(m.size(), keys.size());
+            Assert.assertEquals(toMap(m).keySet(), new HashSet<>(keys));
+
+            MappedPMap.write(lm, MappedPMap.LONG, MappedPMap.INT, p);
+            MappedPMap<Long, Integer> mlm = MappedPMap.open(p, MappedPMap.LONG, MappedPMap.INT);
+            Assert.assertEquals(lm.size(), mlm.size());
+            lm.forEach((k, v) -> Assert.assertEquals(v, mlm.get(k)));
+            Assert.assertEquals(-1, (int) mlm.getOrDefault(1L, -1));
+
+            MappedPMap.write(PMap.empty(), MappedPMap.INT, MappedPMap.STRING, p);
+            Assert.assertEquals(0, MappedPMap.open(p, MappedPMap.INT, MappedPMap.STRING).size());
+            Assert.assertNull(MappedPMap.open(p, MappedPMap.INT, MappedPMap.STRING).get(0));
+            try {
+                MappedPMap.open(p, MappedPMap.LONG, MappedPMap.STRING);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+        finally {
+            Files.delete(p);
+        }
+    }
+
+    @Test
+    public void codec() throws IOException {
+        // Strings of "Aa" and "BB", which have the same hash code, collide
+        PMap<String, Integer> m = PMap.empty();
+        PMap<String, Integer> cm = PMap.emptyCachingHashes();
+        for (int i = 0; i < 10_000; i++) {
+            String k = Integer.toBinaryString(i).replace("0", "Aa").replace("1", "BB");
+            m = m.put(k, i).put(Integer.toString(i), -i);
+            cm = cm.put(k, i).put(Integer.toString(i), -i);
+        }
+        PMapCodec<String, Integer> codec = new PMapCodec<>(PMapCodec.STRING, PMapCodec.INT);
+
+        Path p = Files.createTempFile("pmap", ".bin");
+        try {
+            for (PMap<String, Integer> e : List.of(m, cm, PMap.<String, Integer>empty())) {
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    codec.write(e, ch);
+                }
+                PMap<String, Integer> r;
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                    r = codec.read(ch);
+                }
+                Assert.assertEquals(e, r);
+                Assert.assertEquals(e.size(), r.size());
+                Assert.assertEquals(toMap(e), toMap(r));
+                e.forEach((k, v) -> Assert.assertEquals(v, r.getOrNull(k)));
+                Assert.assertNull(r.getOrNull("missing"));
+                // The restored map is a functioning map
+                PMap<String, Integer> rr = r.put("missing", 0);
+                Assert.assertEquals(e.size() + 1, rr.size());
+                Assert.assertEquals(e, rr.remove("missing"));
+            }
+
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ch.write(ByteBuffer.wrap(new byte[16]));
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                codec.read(ch);
+                Assert.fail();
+            }
+            catch (IOException e) {
+            }
+
+            // byte[] keys have no stable hash
+            PMapCodec<byte[], Integer> bytesCodec = new PMapCodec<>(PMapCodec.BYTES, PMapCodec.INT);
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                bytesCodec.write(PMap.<byte[], Integer>empty().put(new byte[1], 1), ch);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                bytesCodec.read(ch);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+        finally {
+            Files.delete(p);
+        }
+    }
+
+    @Test
+    public void ref() throws InterruptedException {
+        PMapRef<Integer, Integer> ref = new PMapRef<>(PMap.empty());
+        int threads = 8;
+        int updates = 10_000;
+        List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            ts.add(new Thread(() -> {
+                for (int i = 0; i < updates; i++) {
+                    ref.update(i % 100, v -> v == null ? 1 : v + 1);
+                    if (i % 1000 == 0) {
+                        ref.putAll(PMap.<Integer, Integer>empty().put(-1 - id, i));
+                    }
+                }
+            }));
+        }
+        ts.forEach(Thread::start);
+        for (Thread t : ts) {
+            t.join();
+        }
+
+        PMap<Integer, Integer> m = ref.get();
+        Assert.assertEquals(100 + threads, m.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(threads * updates / 100, (int) m.getOrNull(i));
+        }
+        for (int t = 0; t < threads; t++) {
+            Assert.assertEquals(updates - 1000, (int) m.getOrNull(-1 - t));
+        }
+        Assert.assertTrue(ref.combinedUpdates() >= ref.batches());
+        Assert.assertTrue(ref.maxBatchSize() <= ref.combinedUpdates());
+
+        Assert.assertEquals(2, (int) ref.compute(0, (k, v) -> 2));
+        Assert.assertNull(ref.update(0, v -> null));
+        Assert.assertNull(ref.get().getOrNull(0));
+        try {
+            ref.update(1, v -> {
+                throw new IllegalStateException();
+            });
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+        }
+        Assert.assertEquals(threads * updates / 100, (int) ref.get().getOrNull(1));
+    }
+
+    @Test
+    public void refError() throws Exception {
+        PMapRef<Integer, Integer> ref = new PMapRef<>(PMap.empty());
+        CountDownLatch combining = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger applications = new AtomicInteger();
+        // A thread per update, updates must run concurrently
+        Executor e = r -> new Thread(r).start();
+
+        // Fail the compare-and-set attempts, by updating the reference
+        // while the update is applied, then block the combiner
+        CompletableFuture<PMap<Integer, Integer>> a = CompletableFuture.supplyAsync(() -> ref.updateAndGet(m -> {
+            if (applications.incrementAndGet() <= 2) {
+                ref.set(m.put(0, 0));
+            }
+            else {
+                combining.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ie) {
+                    throw new IllegalStateException(ie);
+                }
+            }
+            return m.put(1, 1);
+        }), e);
+        combining.await();
+
+        // Updates queued while combining, one throwing an error
+        CompletableFuture<PMap<Integer, Integer>> b = CompletableFuture.supplyAsync(() -> ref.updateAndGet(m -> {
+            throw new AssertionError();
+        }), e);
+        CompletableFuture<PMap<Integer, Integer>> c = CompletableFuture.supplyAsync(() -> ref.updateAndGet(m -> m.put(2, 2)), e);
+        Thread.sleep(200);
+        release.countDown();
+
+        // Threads waiting for a batch with an error would never complete
+        Assert.assertEquals((Integer) 1, a.get(60, TimeUnit.SECONDS).getOrNull(1));
+        Assert.assertEquals((Integer) 2, c.get(60, TimeUnit.SECONDS).getOrNull(2));
+        try {
+            b.get(60, TimeUnit.SECONDS);
+            Assert.fail();
+        }
+        catch (ExecutionException ee) {
+            Assert.assertTrue(ee.getCause() instanceof AssertionError);
+        }
+        Assert.assertEquals(3, ref.get().size());
+    }
+
+    @Test
+    public void stats() {
+        PMap<Integer, Integer> m = PMap.empty();
+        for (int i = 0; i < 100_000; i++) {
+            m = m.put(i, i);
+        }
+        PMapStats s = m.stats();
+        Assert.assertEquals(m.size(), s.size());
+        Assert.assertEquals(0, s.collisionNodeCount());
+        Assert.assertEquals(1, s.layers(0));
+        Assert.assertTrue(s.depth() >= 4);
+        int mappings = 0;
+        for (int d = 0; d < s.depth(); d++) {
+            mappings += s.mappings(d);
+            Assert.assertTrue(s.fanOut(d) > 0 && s.fanOut(d) <= 32);
+        }
+        Assert.assertEquals(m.size(), mappings);
+        Assert.assertTrue(s.estimatedBytes() > 8L * m.size());
+        Assert.assertTrue(Double.isNaN(s.sharedFraction()));
+        Assert.assertEquals(1.0, m.stats(m).sharedFraction(), 0);
+        double shared = m.put(-1, -1).stats(m).sharedFraction();
+        Assert.assertTrue(shared > 0.99 && shared < 1);
+        Assert.assertEquals(0.0, m.stats(PMap.empty()).sharedFraction(), 0);
+
+        // Strings of "Aa" and "BB", which have the same hash code, collide
+        PMap<String, Integer> cm = PMap.empty();
+        for (int i = 0; i < 64; i++) {
+            cm = cm.put(Integer.toBinaryString(i).replace("0", "Aa").replace("1", "BB"), i);
+        }
+        PMapStats cs = cm.stats();
+        Assert.assertTrue(cs.collisionNodeCount() > 0);
+        Assert.assertTrue(cs.maxCollisionSize() >= 2);
+        mappings = cs.collisionMappings();
+        for (int d = 0; d < cs.depth(); d++) {
+            mappings += cs.mappings(d);
+        }
+        Assert.assertEquals(cm.size(), mappings);
+        Assert.assertFalse(cs.toString().isEmpty());
+
+        PMapStats es = PMap.empty().stats();
+        Assert.assertEquals(0, es.size());
+        Assert.assertEquals(1, es.depth());
+        Assert.assertEquals(0, es.fanOut(0), 0);
+    }
+
+    @Test
+    public void hashStrategy() throws IOException {
+        HashStrategy hs = HashStrategy.seeded(42);
+        // Strings of "Aa" and "BB", which have the same hash code, collide
+        // unless hashed by a strategy
+        PMap<String, Integer> m = PMap.empty();
+        PMap<String, Integer> sm = PMap.empty(hs);
+        for (int i = 0; i < 1024; i++) {
+            String k = Integer.toBinaryString(i).replace("0", "Aa").replace("1", "BB");
+            m = m.put(k, i);
+            sm = sm.put(k, i);
+        }
+        Assert.assertTrue(m.stats().collisionNodeCount() > 0);
+        Assert.assertEquals(0, sm.stats().collisionNodeCount());
+        Assert.assertTrue(m.stats().maxCollisionSize() > 100);
+
+        Assert.assertEquals(m.size(), sm.size());
+        for (Map.Entry<String, Integer> e : m.entries()) {
+            Assert.assertEquals(e.getValue(), sm.getOrNull(e.getKey()));
+        }
+        Assert.assertEquals(m, sm);
+        Assert.assertEquals(sm, m);
+        Assert.assertEquals(m.hashCode(), sm.hashCode());
+        Assert.assertNotEquals(m.put("x", 0), sm);
+        sm.diff(m, new PMap.DiffListener<>() {
+            @Override
+            public void added(String k, Integer v) {
+                Assert.fail();
+            }
+
+            @Override
+            public void removed(String k, Integer v) {
+                Assert.fail();
+            }
+
+            @Override
+            public void changed(String k, Integer v, Integer thatV) {
+                Assert.fail();
+            }
+        });
+
+        // Maps derived from a map with a strategy have the strategy
+        PMap<String, Integer> um = sm.putAll(m.put("x", -1));
+        Assert.assertEquals(m.size() + 1, um.size());
+        Assert.assertEquals(0, um.stats().collisionNodeCount());
+        PMap<String, Integer> rm = sm;
+        for (String k : toMap(m).keySet()) {
+            rm = rm.remove(k);
+        }
+        Assert.assertEquals(0, rm.size());
+        Assert.assertEquals(0, rm.put("AaAa", 0).put("BBBB", 1).stats().collisionNodeCount());
+        Collection<Map.Entry<String, Integer>> entries = m.entries();
+        PMap<String, Integer> bm = PMap.<String, Integer>empty(hs).withMutations(b -> {
+            for (Map.Entry<String, Integer> e : entries) {
+                b.put(e.getKey(), e.getValue());
+            }
+        });
+        Assert.assertEquals(0, bm.stats().collisionNodeCount());
+        Assert.assertEquals(sm, bm);
+        Assert.assertEquals(m.size() - 1, bm.withMutations(b -> b.remove("Aa")).size());
+
+        // Strategies of equal seeds are equal, so nodes are shared
+        HashStrategy ehs = HashStrategy.seeded(42);
+        Assert.assertNotSame(hs, ehs);
+        Assert.assertEquals(hs, ehs);
+        Assert.assertEquals(hs.hashCode(), ehs.hashCode());
+        Assert.assertNotEquals(hs, HashStrategy.seeded(43));
+        PMap<String, Integer> em = PMap.<String, Integer>empty(ehs).put("x", -1);
+        PMap<String, Integer> esm = em.putAll(sm);
+        Assert.assertEquals(sm.put("x", -1), esm);
+        Assert.assertTrue(esm.stats(sm).sharedFraction() > 0.9);
+
+        PMapCodec<String, Integer> codec = new PMapCodec<>(PMapCodec.STRING, PMapCodec.INT);
+        Path p = Files.createTempFile("pmap", ".bin");
+        try {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                codec.write(sm, ch);
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                PMap<String, Integer> r = codec.read(ch, hs);
+                Assert.assertEquals(sm, r);
+                Assert.assertEquals(1, (int) r.getOrNull("BB"));
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                codec.read(ch);
+                Assert.fail();
+            }
+            catch (IOException e) {
+            }
+        }
+        finally {
+            Files.delete(p);
+        }
+    }
+
+    @Test
+    public void extendedHashes() throws IOException {
+        // A strategy whose hashes consume few bits, so all the 32 bits are
+        // consumed by few keys, and whose keys below 512 are hashed equally
+        // at all levels in pairs, k and k + 4 where k % 8 < 4
+        HashStrategy ls = new HashStrategy() {
+            @Override
+            public int hash(Object k) {
+                return (Integer) k & 3;
+            }
+
+            @Override
+            public int hash(Object k, int level) {
+                int i = (Integer) k;
+                if (level == 0) {
+                    return hash(k);
+                }
+                return i < 512 ? ((i >> 3) << 2 | i & 3) * level : i * 0x9e3779b9 + level;
+            }
+        };
+
+        // The number of keys in collision nodes are those with hashes equal
+        // to those of another key at all levels
+        Map<List<Integer>, Integer> levelHashes = new HashMap<>();
+        PMap<Integer, Integer> m = PMap.empty();
+        PMap<Integer, Integer> lm = PMap.empty(ls);
+        for (int i = 0; i < 1024; i++) {
+            List<Integer> hs = new ArrayList<>();
+            for (int level = 0; level < HashStrategy.LEVELS; level++) {
+                hs.add(ls.hash(i, level));
+            }
+            levelHashes.merge(hs, 1, Integer::sum);
+            m = m.put(i, i);
+            lm = lm.put(i, i);
+        }
+        int colliding = levelHashes.values().stream().filter(c -> c > 1).mapToInt(c -> c).sum();
+        Assert.assertEquals(512, colliding);
+        PMapStats s = lm.stats();
+        Assert.assertEquals(colliding, s.collisionMappings());
+        Assert.assertEquals(colliding / 2, s.collisionNodeCount());
+        Assert.assertEquals(2, s.maxCollisionSize());
+        // Layers beyond those consuming the 32 bits of the hash
+        Assert.assertTrue(s.depth() > 7);
+
+        Assert.assertEquals(m.size(), lm.size());
+        Assert.assertEquals(toMap(m), toMap(lm));
+        Assert.assertEquals(m, lm);
+        for (int i = 0; i < 1024; i++) {
+            Assert.assertEquals(i, (int) lm.getOrNull(i));
+        }
+        Assert.assertNull(lm.getOrNull(1024));
+
+        PMap<Integer, Integer> rm = lm;
+        for (int i = 0; i < 1024; i += 3) {
+            rm = rm.remove(i);
+        }
+        PMap<Integer, Integer> cm = lm;
+        for (int i = 0; i < 1024; i += 3) {
+            cm = cm.compute(i, (k, v) -> null);
+        }
+        PMap<Integer, Integer> fm = lm.filter((k, v) -> k % 3 != 0);
+        PMap<Integer, Integer> bm = lm.withMutations(b -> {
+            for (int i = 0; i < 1024; i += 3) {
+                b.remove(i);
+            }
+        });
+        Assert.assertEquals(rm, cm);
+        Assert.assertEquals(rm, fm);
+        Assert.assertEquals(rm, bm);
+        Assert.assertEquals(m.filter((k, v) -> k % 3 != 0), rm);
+        Assert.assertEquals(lm.size() - (1024 + 2) / 3, rm.size());
+        Assert.assertEquals(lm, rm.putAll(lm.filter((k, v) -> k % 3 == 0)));
+        Assert.assertEquals(lm, PMap.<Integer, Integer>empty(ls).withMutations(b -> {
+            for (int i = 1023; i >= 0; i--) {
+                b.put(i, i);
+            }
+        }));
+        PMap<Integer, Integer> rem = rm;
+        for (int i = 0; i < 1024; i++) {
+            rem = rem.remove(i);
+        }
+        Assert.assertEquals(0, rem.size());
+        Assert.assertEquals(1, rem.put(0, 0).stats().depth());
+
+        List<Integer> removed = new ArrayList<>();
+        lm.diff(rm, new PMap.DiffListener<>() {
+            @Override
+            public void added(Integer k, Integer v) {
+                Assert.fail();
+            }
+
+            @Override
+            public void removed(Integer k, Integer v) {
+                removed.add(k);
+            }
+
+            @Override
+            public void changed(Integer k, Integer v, Integer thatV) {
+                Assert.fail();
+            }
+        });
+        Assert.assertEquals(toMap(lm.filter((k, v) -> k % 3 == 0)).keySet(), new HashSet<>(removed));
+
+        PMapCodec<Integer, Integer> codec = new PMapCodec<>(PMapCodec.INT, PMapCodec.INT);
+        Path p = Files.createTempFile("pmap", ".bin");
+        try {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                codec.write(lm, ch);
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                Assert.assertEquals(lm, codec.read(ch, ls));
+            }
+        }
+        finally {
+            Files.delete(p);
+        }
+
+        // Strings are hashed by a seeded strategy at all levels, so strings
+        // of equal hash are distinguished at the other levels
+        HashStrategy hs = HashStrategy.seeded(42);
+        HashStrategy zs = new HashStrategy() {
+            @Override
+            public int hash(Object k) {
+                return 0;
+            }
+
+            @Override
+            public int hash(Object k, int level) {
+                return level == 0 ? 0 : hs.hash(k, level);
+            }
+        };
+        PMap<String, Integer> zm = PMap.empty(zs);
+        for (int i = 0; i < 256; i++) {
+            zm = zm.put(Integer.toBinaryString(i).replace("0", "Aa").replace("1", "BB"), i);
+        }
+        Assert.assertEquals(256, zm.size());
+        Assert.assertEquals(0, zm.stats().collisionNodeCount());
+        Assert.assertEquals(1, (int) zm.getOrNull("BB"));
+        Assert.assertNotEquals(hs.hash("Aa", 1), hs.hash("BB", 1));
+        Assert.assertNotEquals(hs.hash("Aa", 0), hs.hash("Aa", 1));
+        Assert.assertEquals(hs.hash("Aa", 1), hs.hash(new StringBuilder("Aa"), 1));
+        // Other keys are not distinguished beyond their hash
+        Assert.assertEquals(0, hs.hash(new IntKey(1, 0), 1));
+    }
+
+    @Test
+    public void sortedCollisions() throws IOException {
+        // Strings of "Aa" and "BB" of the same length have the same hash
+        // code, and strings are comparable
+        PMap<String, Integer> m = PMap.empty();
+        Map<String, Integer> hm = new HashMap<>();
+        for (int i = 0; i < 256; i++) {
+            String k = Integer.toBinaryString(i | 256).replace("0", "Aa").replace("1", "BB");
+            m = m.put(k, i);
+            hm.put(k, i);
+        }
+        Assert.assertEquals(1, m.stats().collisionNodeCount());
+        Assert.assertEquals(256, m.stats().maxCollisionSize());
+        Assert.assertEquals(hm, toMap(m));
+        for (Map.Entry<String, Integer> e : hm.entrySet()) {
+            Assert.assertEquals(e.getValue(), m.getOrNull(e.getKey()));
+            Assert.assertEquals(-1, (int) m.put(e.getKey(), -1).getOrNull(e.getKey()));
+        }
+        Assert.assertNull(m.getOrNull("AaAaAaAaAaAaAaAaAa"));
+
+        PMap<String, Integer> evens = PMap.empty(), odds = PMap.empty();
+        for (Map.Entry<String, Integer> e : hm.entrySet()) {
+            if (e.getValue() % 2 == 0) {
+                evens = evens.put(e.getKey(), e.getValue());
+            }
+            else {
+                odds = odds.put(e.getKey(), e.getValue());
+            }
+        }
+        Assert.assertEquals(m, evens.putAll(odds));
+        Assert.assertEquals(m, odds.putAll(evens));
+        PMap<String, Integer> r = m;
+        for (String k : odds.asMap().keySet()) {
+            r = r.remove(k);
+        }
+        Assert.assertEquals(evens, r);
+
+        PMapCodec<String, Integer> codec = new PMapCodec<>(PMapCodec.STRING, PMapCodec.INT);
+        Path p = Files.createTempFile("pmap", ".bin");
+        try {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                codec.write(m, ch);
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                Assert.assertEquals(m, codec.read(ch));
+            }
+        }
+        finally {
+            Files.delete(p);
+        }
+
+        // Keys that compare as equal but are not equal, and keys that are
+        // not mutually comparable
+        Random rnd = new Random(0);
+        PMap<Object, Integer> cm = PMap.empty();
+        Map<Object, Integer> chm = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            int id = rnd.nextInt(64);
+            Object k = id == 63 ? new IntKey(id, 0) : new ComparableKey(id);
+            if (rnd.nextInt(3) == 0) {
+                cm = cm.remove(k);
+                chm.remove(k);
+            }
+            else {
+                cm = cm.put(k, i);
+                chm.put(k, i);
+            }
+            Assert.assertEquals(chm.get(k), cm.getOrNull(k));
+        }
+        Assert.assertEquals(chm, toMap(cm));
+        for (Map.Entry<Object, Integer> e : chm.entrySet()) {
+            Assert.assertEquals(e.getValue(), cm.getOrNull(e.getKey()));
+        }
+    }
+
+    @Test
+    public void filter() {
+        Random rnd = new Random(0);
+        for (PMap<Object, Integer> e : List.of(PMap.<Object, Integer>empty(),
+                                               PMap.<Object, Integer>emptyCachingHashes(),
+                                               PMap.<Object, Integer>empty(HashStrategy.seeded(1)))) {
+            PMap<Object, Integer> m = e;
+            for (int i = 0; i < 20_000; i++) {
+                // Keys with colliding hashes, some sorted in collision nodes
+                Object k = rnd.nextInt(4) == 0 ? new IntKey(i, i >> 4) : (Object) i;
+                m = m.put(k, i);
+            }
+
+            for (int mod : new int[]{1, 2, 10, 1000}) {
+                int _mod = mod;
+                PMap<Object, Integer> f = m.filter((k, v) -> v % _mod != 0);
+                PMap<Object, Integer> r = m;
+                Map<Object, Integer> hm = new HashMap<>();
+                for (Map.Entry<Object, Integer> me : m.entries()) {
+                    if (me.getValue() % mod != 0) {
+                        hm.put(me.getKey(), me.getValue());
+                    }
+                    else {
+                        r = r.remove(me.getKey());
+                    }
+                }
+                Assert.assertEquals(hm, toMap(f));
+                // Structurally equal to removing each mapping
+                Assert.assertEquals(r, f);
+                Assert.assertEquals(r.stats().toString(), f.stats().toString());
+                PMap<Object, Integer> _r = r;
+                f.forEach((k, v) -> Assert.assertEquals(v, _r.getOrNull(k)));
+            }
+
+            Assert.assertSame(m, m.filter((k, v) -> true));
+            Assert.assertEquals(0, m.filter((k, v) -> false).size());
+            Assert.assertEquals(e, m.filter((k, v) -> false));
+            Assert.assertEquals(0, m.filter((k, v) -> false).put(0, 0).stats().collisionNodeCount());
+
+            // Unfiltered sub-layers are shared
+            PMap<Object, Integer> one = m.filter((k, v) -> v != 1234);
+            Assert.assertEquals(m.size() - 1, one.size());
+            Assert.assertTrue(one.stats(m).sharedFraction() > 0.9);
+
+            List<Object> ks = new ArrayList<>();
+            for (Object k : m.asMap().keySet()) {
+                if (rnd.nextInt(10) == 0) {
+                    ks.add(k);
+                }
+            }
+            PMap<Object, Integer> rm = m.removeAll(ks);
+            PMap<Object, Integer> ra = m.retainAll(ks);
+            Assert.assertEquals(m.size(), rm.size() + ra.size());
+            Assert.assertEquals(m, rm.putAll(ra));
+            for (Object k : ks) {
+                Assert.assertNull(rm.getOrNull(k));
+                Assert.assertNotNull(ra.getOrNull(k));
+            }
+            Assert.assertEquals(m.remove(ks.get(0)), m.removeAll(List.of(ks.get(0))));
+
+            PSet<Object> ps = PSet.empty();
+            for (Object k : ks) {
+                ps = ps.add(k);
+            }
+            Assert.assertEquals(rm, m.removeAll(ps));
+            Assert.assertEquals(ra, m.retainAll(ps));
+        }
+    }
+
+    @Test
+    public void removeAllMembership() {
+        PMap<String, Integer> m = PMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            m = m.put("k" + i, i);
+        }
+
+        // Keys are removed if equal to an element, whatever the membership
+        // of the collection and the number of its elements
+        for (int n : new int[]{2, 10, 1000}) {
+            TreeSet<String> ks = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 1; i < n; i++) {
+                ks.add("K" + i);
+            }
+            Assert.assertEquals(m, m.removeAll(ks));
+            Assert.assertEquals(0, m.retainAll(ks).size());
+
+            ks.add("k0");
+            Assert.assertEquals(m.remove("k0"), m.removeAll(ks));
+            Assert.assertEquals(PMap.of("k0", 0), m.retainAll(ks));
+        }
+    }
+
+    @Test
+    public void compute() {
+        Random rnd = new Random(0);
+        for (PMap<Object, Integer> e : List.of(PMap.<Object, Integer>empty(),
+                                               PMap.<Object, Integer>emptyCachingHashes(),
+                                               PMap.<Object, Integer>empty(HashStrategy.seeded(1)))) {
+            PMap<Object, Integer> m = e;
+            PMap<Object, Integer> r = e;
+            Map<Object, Integer> hm = new HashMap<>();
+            for (int i = 0; i < 50_000; i++) {
+                // Keys with colliding hashes, some sorted in collision nodes
+                int ki = rnd.nextInt(5_000);
+                Object k = rnd.nextInt(4) == 0 ? new IntKey(ki, ki >> 4) : (Object) ki;
+                int v = rnd.nextInt(8);
+                Integer nv = v == 0 ? null : v;
+                switch (rnd.nextInt(4)) {
+                    case 0:
+                        m = m.compute(k, (_k, _v) -> nv);
+                        hm.compute(k, (_k, _v) -> nv);
+                        break;
+                    case 1:
+                        m = m.computeIfAbsent(k, _k -> nv);
+                        hm.computeIfAbsent(k, _k -> nv);
+                        break;
+                    case 2:
+                        m = m.computeIfPresent(k, (_k, _v) -> _v + v > 10 ? null : _v + v);
+                        hm.computeIfPresent(k, (_k, _v) -> _v + v > 10 ? null : _v + v);
+                        break;
+                    default:
+                        m = m.merge(k, v + 1, (a, b) -> a + b > 10 ? null : a + b);
+                        hm.merge(k, v + 1, (a, b) -> a + b > 10 ? null : a + b);
+                }
+                Integer hv = hm.get(k);
+                r = hv == null ? r.remove(k) : r.put(k, hv);
+            }
+            Assert.assertEquals(hm, toMap(m));
+            // Structurally equal to the same updates with put and remove
+            Assert.assertEquals(r, m);
+            Assert.assertEquals(r.stats().toString(), m.stats().toString());
+
+            // Unchanged values return the same map
+            for (Object k : hm.keySet()) {
+                Assert.assertSame(m, m.compute(k, (_k, _v) -> _v));
+                Assert.assertSame(m, m.computeIfAbsent(k, _k -> 0));
+                Assert.assertSame(m, m.computeIfPresent(k, (_k, _v) -> _v));
+            }
+            Assert.assertSame(m, m.compute(-1, (_k, _v) -> null));
+            Assert.assertSame(m, m.computeIfPresent(-1, (_k, _v) -> 1));
+            Assert.assertSame(m, m.computeIfAbsent(-1, _k -> null));
+            Assert.assertSame(m, m.computeIfAbsent(new IntKey(-1, 0), _k -> null));
+
+            // Removing every mapping results in an empty map
+            PMap<Object, Integer> c = m;
+            for (Object k : hm.keySet()) {
+                c = c.computeIfPresent(k, (_k, _v) -> null);
+            }
+            Assert.assertEquals(e, c);
+            Assert.assertEquals(0, c.put(0, 0).stats().collisionNodeCount());
+        }
+    }
+
+    @Test
+    public void intern() {
+        PMapInterner pool = new PMapInterner();
+        List<PMap<Object, Integer>> ms = new ArrayList<>();
+        for (int j = 0; j < 10; j++) {
+            // Independently built maps, with mappings in a different order,
+            // sharing all but one mapping
+            Random rnd = new Random(j);
+            List<Integer> ks = new ArrayList<>();
+            for (int i = 0; i < 10_000; i++) {
+                ks.add(i);
+            }
+            Collections.shuffle(ks, rnd);
+            PMapBuilder<Object, Integer> b = PMap.<Object, Integer>empty().toBuilder();
+            for (int k : ks) {
+                b.put(k == 0 ? 10_000 + j : (Object) k, k);
+                b.put(new IntKey(k, k >> 4), k);
+            }
+            ms.add(b.build(pool));
+        }
+
+        PMap<Object, Integer> m0 = ms.get(0);
+        for (PMap<Object, Integer> m : ms) {
+            Assert.assertEquals(20_000, m.size());
+            Assert.assertEquals((Integer) 5, m.getOrNull(new IntKey(5, 0)));
+            Assert.assertSame(m, pool.intern(m));
+            Assert.assertTrue(m.stats(m0).sharedFraction() > 0.9);
+        }
+        Assert.assertTrue(pool.hits() > 0);
+
+        // Equal maps intern to the same map
+        PMap<Object, Integer> m1 = ms.get(1);
+        PMap<Object, Integer> c = m1.remove(10_001).put(10_001, 0);
+        Assert.assertNotSame(m1, c);
+        Assert.assertSame(m1, pool.intern(c));
+        Assert.assertSame(m0, pool.intern(m1.remove(10_001).put(10_000, 0)));
+
+        // Layers of maps with other hash caching modes or strategies are
+        // not merged, only collision nodes of keys with equal hashes
+        PMap<Object, Integer> cm = PMap.emptyCachingHashes();
+        PMap<Object, Integer> sm = PMap.empty(HashStrategy.seeded(1));
+        for (Map.Entry<Object, Integer> e : m0.entries()) {
+            cm = cm.put(e.getKey(), e.getValue());
+            sm = sm.put(e.getKey(), e.getValue());
+        }
+        for (PMap<Object, Integer> m : List.of(cm, sm)) {
+            PMap<Object, Integer> im = pool.intern(m);
+            Assert.assertSame(im, pool.intern(m));
+            Assert.assertEquals(m0, im);
+            PMapStats s = im.stats(m0);
+            long shared = Math.round(s.sharedFraction() * (s.layerCount() + s.collisionNodeCount()));
+            Assert.assertEquals(m == cm ? s.collisionNodeCount() : 0, shared);
+        }
+
+        // Nodes no longer reachable are removed from the pool
+        int size = pool.size();
+        ms.clear();
+        m0 = m1 = c = cm = sm = null;
+        for (int i = 0; i < 100 && pool.size() >= size; i++) {
+            System.gc();
+        }
+        Assert.assertTrue(pool.size() < size);
+    }
+
+    @Test
+    public void cachingHashes() {
+        CountingKey a = new CountingKey(0, 1);
+        CountingKey b = new CountingKey(1, 33);
+        PMap<Object, Object> m = PMap.emptyCachingHashes().put(a, "a");
+
+        // A mismatched hash rejects without calling equals
+        Assert.assertFalse(m.get(b).isPresent());
+        Assert.assertEquals(0, a.equalsCount + b.equalsCount);
+
+        // Replacing a mapping node with a sub-layer does not rehash
+        int hashCount = a.hashCodeCount;
+        m = m.put(b, "b");
+        Assert.assertEquals(hashCount, a.hashCodeCount);
+        Assert.assertEquals(0, a.equalsCount + b.equalsCount);
+        Assert.assertEquals(Optional.of("a"), m.get(a));
+        Assert.assertEquals(Optional.of("b"), m.get(b));
+    }
+
+    @Test
+    public void lookupWithoutAllocation() {
+        com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(tmx.isThreadAllocatedMemorySupported());
+        tmx.setThreadAllocatedMemoryEnabled(true);
+
+        Object[] keys = new Object[1_000];
+        PMap<Object, Object> m = PMap.empty();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i % 2 == 0 ? (Object) i : new IntKey(i, i / 4);
+            if (i % 3 != 0) {
+                m = m.put(keys[i], keys[i]);
+            }
+        }
+        Object absent = new Object();
+
+        int found = 0;
+        for (int w = 0; w < 2; w++) {
+            long tid = Thread.currentThread().getId();
+            long before = tmx.getThreadAllocatedBytes(tid);
+            for (int r = 0; r < 100; r++) {
+                for (Object k : keys) {
+                    if (m.containsKey(k)) found++;
+                    if (m.getOrNull(k) != null) found++;
+                    if (m.getOrDefault(k, absent) != absent) found++;
+                }
+            }
+            long allocated = tmx.getThreadAllocatedBytes(tid) - before;
+            // Allow for allocation by getThreadAllocatedBytes itself
+            Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+        }
+        Assert.assertEquals(2 * 100 * 3 * m.size(), found);
+
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertEquals(i % 3 != 0, m.containsKey(keys[i]));
+            Assert.assertEquals(i % 3 != 0 ? keys[i] : null, m.getOrNull(keys[i]));
+        }
+    }
+
+    static <K, V> Map<K, V> toMap(PMap<K, V> m) {
+        Map<K, V> hm = new HashMap<>();
+        m.forEach(hm::put);
+        return hm;
+    }
+
+    static final class CountingKey {
+        final int i;
+        final int h;
+        int equalsCount;
+        int hashCodeCount;
+
+        CountingKey(int i, int h) {
+            this.i = i;
+            this.h = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            equalsCount++;
+            return o instanceof CountingKey && i == ((CountingKey) o).i;
+        }
+
+        @Override
+        public int hashCode() {
+            hashCodeCount++;
+            return h;
+        }
+    }
+
+    // Equal by identifier, and ordered by identifier divided by 3
+    static final class ComparableKey implements Comparable<ComparableKey> {
+        final int i;
+
+        ComparableKey(int i) {
+            this.i = i;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ComparableKey && i == ((ComparableKey) o).i;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+
+        @Override
+        public int compareTo(ComparableKey k) {
+            return Integer.compare(i / 3, k.i / 3);
+        }
+    }
+
     static final class IntKey {
         final int i;
         final int h;
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+import per.PSet;
+import per.PSetBuilder;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+public class PSetTest {
+
+    @Test
+    public void randomOperations() {
+        Random r = new Random(42);
+        Set<Object> expected = new HashSet<>();
+        PSet<Object> s = PSet.empty();
+        for (int i = 0; i < 50_000; i++) {
+            // Elements with hashes from a small range, some of which collide
+            int ei = r.nextInt(2_000);
+            Object e = new PMapTest.IntKey(ei, ei % 700);
+            if (r.nextInt(3) == 0) {
+                expected.remove(e);
+                s = s.remove(e);
+            }
+            else {
+                expected.add(e);
+                s = s.add(e);
+            }
+            Assert.assertEquals(expected.contains(e), s.contains(e));
+        }
+        Assert.assertEquals(expected.size(), s.size());
+        Assert.assertEquals(expected, toSet(s));
+
+        // The same shape when built in a different order, or with a builder
+        PSet<Object> b = PSet.empty();
+        for (Object e : expected) {
+            b = b.add(e);
+        }
+        Assert.assertEquals(s, b);
+        Assert.assertEquals(expected.hashCode(), s.hashCode());
+        Assert.assertEquals(s, PSet.of(pb -> expected.forEach(pb::add)));
+
+        // Iteration in the same order as forEach
+        Iterator<Object> it = s.iterator();
+        s.forEach(e -> Assert.assertSame(e, it.next()));
+        Assert.assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void builder() {
+        Random r = new Random(42);
+        PSet<Object> base = PSet.empty();
+        for (int i = 0; i < 2_000; i++) {
+            base = base.add(new PMapTest.IntKey(i, i % 700));
+        }
+        Set<Object> expectedBase = toSet(base);
+
+        Set<Object> expected = new HashSet<>(expectedBase);
+        PSetBuilder<Object> b = base.toBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            int ei = r.nextInt(3_000);
+            Object e = new PMapTest.IntKey(ei, ei % 700);
+            if (r.nextBoolean()) {
+                expected.remove(e);
+                b.remove(e);
+            }
+            else {
+                expected.add(e);
+                b.add(e);
+            }
+        }
+        PSet<Object> s = b.build();
+        Assert.assertEquals(expected, toSet(s));
+        Assert.assertEquals(expected.size(), s.size());
+        // The base is unmodified
+        Assert.assertEquals(expectedBase, toSet(base));
+
+        try {
+            b.add("built");
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void setOperations() {
+        Random r = new Random(42);
+        for (int round = 0; round < 100; round++) {
+            int range = 1 + r.nextInt(3_000);
+            PSet<Object> a = randomSet(r, range);
+            // Sets that share most of their nodes, or are independent
+            PSet<Object> b = r.nextInt(4) == 0
+                             ? a.add("shared").remove(new PMapTest.IntKey(0, 0))
+                             : randomSet(r, range);
+            Set<Object> ea = toSet(a);
+            Set<Object> eb = toSet(b);
+
+            Set<Object> union = new HashSet<>(ea);
+            union.addAll(eb);
+            Set<Object> intersect = new HashSet<>(ea);
+            intersect.retainAll(eb);
+            Set<Object> difference = new HashSet<>(ea);
+            difference.removeAll(eb);
+
+            // Equality, with a set built by successive adds, asserts the
+            // shape is canonical
+            assertSet(union, a.union(b));
+            assertSet(intersect, a.intersect(b));
+            assertSet(difference, a.difference(b));
+        }
+    }
+
+    @Test
+    public void setOperationsSharing() {
+        PSet<Object> a = randomSet(new Random(42), 10_000);
+        PSet<Object> added = a.add("added");
+
+        Assert.assertSame(a, a.union(a));
+        Assert.assertSame(a, a.intersect(a));
+        Assert.assertEquals(0, a.difference(a).size());
+        Assert.assertSame(added, a.union(added));
+        Assert.assertSame(added, added.union(a));
+        Assert.assertSame(a, a.intersect(added));
+        Assert.assertSame(a, a.difference(PSet.empty()));
+        Assert.assertEquals(PSet.of("added"), added.difference(a));
+    }
+
+    static PSet<Object> randomSet(Random r, int range) {
+        // Elements with hashes from a small range, some of which collide
+        PSet<Object> s = PSet.empty();
+        for (int i = 0, n = r.nextInt(range); i < n; i++) {
+            int ei = r.nextInt(range);
+            s = s.add(new PMapTest.IntKey(ei, ei % 700));
+        }
+        return s;
+    }
+
+    static void assertSet(Set<Object> expected, PSet<Object> actual) {
+        Assert.assertEquals(expected, toSet(actual));
+        Assert.assertEquals(expected.size(), actual.size());
+        PSet<Object> s = PSet.empty();
+        for (Object e : expected) {
+            s = s.add(e);
+        }
+        Assert.assertEquals(s, actual);
+        Assert.assertEquals(s.hashCode(), actual.hashCode());
+    }
+
+    static <E> Set<E> toSet(PSet<E> s) {
+        Set<E> hs = new HashSet<>();
+        s.forEach(hs::add);
+        return hs;
+    }
+}